@@ -0,0 +1,18 @@
+@echo off
+
+cd /d %~dp0
+
+set JMH=1.37
+set MAVEN=https://repo1.maven.org/maven2
+if not exist lib\ mkdir lib
+if not exist lib\jmh-core-%JMH%.jar curl -sSfL -o lib\jmh-core-%JMH%.jar %MAVEN%/org/openjdk/jmh/jmh-core/%JMH%/jmh-core-%JMH%.jar
+if not exist lib\jmh-generator-annprocess-%JMH%.jar curl -sSfL -o lib\jmh-generator-annprocess-%JMH%.jar %MAVEN%/org/openjdk/jmh/jmh-generator-annprocess/%JMH%/jmh-generator-annprocess-%JMH%.jar
+if not exist lib\jopt-simple-5.0.4.jar curl -sSfL -o lib\jopt-simple-5.0.4.jar %MAVEN%/net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar
+if not exist lib\commons-math3-3.6.1.jar curl -sSfL -o lib\commons-math3-3.6.1.jar %MAVEN%/org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar
+
+if exist build\ rmdir /s /q build
+dir /s /b ..\src\*.java src\*.java > sources.txt
+javac -Xlint -encoding UTF-8 -cp "lib\*" -processorpath lib\jmh-generator-annprocess-%JMH%.jar;lib\jmh-core-%JMH%.jar -d build\ @sources.txt
+del sources.txt
+echo Class-Path: lib/jmh-core-%JMH%.jar lib/jopt-simple-5.0.4.jar lib/commons-math3-3.6.1.jar> build\MANIFEST.MF
+jar --create --file=Benchmarks.jar --manifest=build\MANIFEST.MF --main-class=arthenoid.hellwire.sampling.bench.Benchmarks -C build\ .
\ No newline at end of file
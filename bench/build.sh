@@ -0,0 +1,23 @@
+#!/bin/bash
+
+shopt -s globstar
+set -e
+
+cd "$(dirname "$0")"
+
+JMH=1.37
+MAVEN=https://repo1.maven.org/maven2
+mkdir -p lib/
+for artifact in \
+  org/openjdk/jmh/jmh-core/$JMH/jmh-core-$JMH.jar \
+  org/openjdk/jmh/jmh-generator-annprocess/$JMH/jmh-generator-annprocess-$JMH.jar \
+  net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+  org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar
+do
+  [ -f lib/${artifact##*/} ] || curl -sSfL -o lib/${artifact##*/} $MAVEN/$artifact
+done
+
+rm -rf build/
+javac -Xlint -encoding UTF-8 -cp "lib/*" -processorpath lib/jmh-generator-annprocess-$JMH.jar:lib/jmh-core-$JMH.jar -d build/ ../src/**/*.java src/**/*.java
+echo "Class-Path: lib/jmh-core-$JMH.jar lib/jopt-simple-5.0.4.jar lib/commons-math3-3.6.1.jar" > build/MANIFEST.MF
+jar --create --file=Benchmarks.jar --manifest=build/MANIFEST.MF --main-class=arthenoid.hellwire.sampling.bench.Benchmarks -C build/ .
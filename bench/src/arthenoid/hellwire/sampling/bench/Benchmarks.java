@@ -0,0 +1,87 @@
+package arthenoid.hellwire.sampling.bench;
+
+import arthenoid.hellwire.sampling.context.BasicContext;
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.context.Hash;
+import arthenoid.hellwire.sampling.datagen.Format;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Runs the benchmarks by JMH, writing the results as JSON to {@value #RESULT_FILE} unless another output is requested.
+ * All the arguments are passed to JMH, e.g. a regular expression selecting the benchmarks or {@code -p n=1024} fixing a parameter.
+ */
+public class Benchmarks {
+  public static final String RESULT_FILE = "results.json";
+  public static final long SEED = 42;
+  /** The number of updates or queries in a measured batch */
+  public static final int BATCH = 1 << 12;
+  /** The number of pregenerated updates */
+  public static final int STREAM = 1 << 18;
+  
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+    if (!jmhArgs.contains("-rf")) jmhArgs.addAll(List.of("-rf", "json"));
+    if (!jmhArgs.contains("-rff")) jmhArgs.addAll(List.of("-rff", RESULT_FILE));
+    org.openjdk.jmh.Main.main(jmhArgs.toArray(String[]::new));
+  }
+  
+  /**
+   * Finds a hash function by name, as the {@code --hash} option does.
+   */
+  public static Function<Context, Hash> hasher(String name) throws ReflectiveOperationException {
+    Constructor<? extends Hash> constructor = Class.forName("arthenoid.hellwire.sampling.context." + name + "Hash").asSubclass(Hash.class).getConstructor(Context.class);
+    return c -> {
+      try {
+        return constructor.newInstance(c);
+      } catch (IllegalAccessException | IllegalArgumentException | InstantiationException | InvocationTargetException e) {
+        throw new RuntimeException(e);
+      }
+    };
+  }
+  
+  public static Context context(String hash) throws ReflectiveOperationException {
+    return new BasicContext(SEED, hasher(hash));
+  }
+  
+  /**
+   * Pregenerated updates of a data generator format.
+   */
+  public static class Updates implements Format.UpdateConsumer {
+    public final long[] indices = new long[STREAM], frequencyChanges = new long[STREAM];
+    protected int count = 0;
+    
+    /**
+     * Generates {@value Benchmarks#STREAM} updates.
+     * @param format The name of the format
+     * @param n The domain size
+     */
+    public Updates(String format, long n) throws ReflectiveOperationException, IOException {
+      Class.forName("arthenoid.hellwire.sampling.datagen.Format" + format)
+        .asSubclass(Format.class)
+        .getConstructor(long.class, long.class, long.class)
+        .newInstance(SEED, n, STREAM)
+        .generate(this);
+    }
+    
+    @Override
+    public void update(long index, long frequencyChange) {
+      indices[count] = index;
+      frequencyChanges[count++] = frequencyChange;
+    }
+    
+    /**
+     * The start of the next batch, cycling through the stream.
+     */
+    public int next(int batch) {
+      int from = count % STREAM;
+      count = from + batch;
+      return from;
+    }
+  }
+}
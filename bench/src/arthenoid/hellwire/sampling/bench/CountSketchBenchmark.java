@@ -0,0 +1,78 @@
+package arthenoid.hellwire.sampling.bench;
+
+import arthenoid.hellwire.sampling.structures.CountSketch;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The cost of an update and a query of a CountSketch of the dimensions used by the Precision sampler:
+ * ln n rows of 6 · 15 ln n / ε columns, so the sketch does not fit the caches for the smaller errors.
+ * The sketch is filled by the whole pregenerated stream before the measurement, the updates continue through the stream again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountSketchBenchmark {
+  @Param({"1048576", "1073741824"})
+  public long n;
+  
+  @Param({"0.1", "0.01"})
+  public double relativeError;
+  
+  @Param({"PowerLaw"})
+  public String format;
+  
+  @Param({"Murmur"})
+  public String hash;
+  
+  protected Benchmarks.Updates updates;
+  protected double[] frequencyChanges;
+  protected CountSketch sketch;
+  
+  @Setup
+  public void setup() throws ReflectiveOperationException, IOException {
+    updates = new Benchmarks.Updates(format, n);
+    frequencyChanges = new double[Benchmarks.STREAM];
+    for (int i = 0; i < Benchmarks.STREAM; i++) frequencyChanges[i] = updates.frequencyChanges[i];
+    long sketchSize = Math.round(15 * Math.log(n) / relativeError);
+    sketch = new CountSketch(Benchmarks.context(hash), (int) Math.round(Math.log(n)), 6 * (int) sketchSize);
+    for (int i = 0; i < Benchmarks.STREAM; i++) sketch.update(updates.indices[i], frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void update() {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) sketch.update(updates.indices[i], frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void batchUpdate() {
+    int from = updates.next(Benchmarks.BATCH);
+    sketch.update(updates.indices, frequencyChanges, from, from + Benchmarks.BATCH);
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void query(Blackhole bh) {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) bh.consume(sketch.query(updates.indices[i]));
+  }
+}
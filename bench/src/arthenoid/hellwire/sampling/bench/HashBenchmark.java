@@ -0,0 +1,87 @@
+package arthenoid.hellwire.sampling.bench;
+
+import arthenoid.hellwire.sampling.context.Hash;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The throughput of the hash functions, hashing one value at a time and in bulk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+  @Param({"Murmur", "Tabulation", "Linear", "MultiplyShift", "Polynomial"})
+  public String hash;
+  
+  @Param({"1000003"})
+  public long bound;
+  
+  @Param({"20"})
+  public int bits;
+  
+  protected Hash h;
+  protected final long[] in = new long[Benchmarks.BATCH], out = new long[Benchmarks.BATCH];
+  
+  @Setup
+  public void setup() throws ReflectiveOperationException {
+    h = Benchmarks.context(hash).newHash();
+    SplittableRandom r = new SplittableRandom(Benchmarks.SEED);
+    for (int i = 0; i < in.length; i++) in[i] = r.nextLong();
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void toLong(Blackhole bh) {
+    for (long x : in) bh.consume(h.toLong(x));
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void toRange(Blackhole bh) {
+    for (long x : in) bh.consume(h.toRange(x, bound));
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void toBits(Blackhole bh) {
+    for (long x : in) bh.consume(h.toBits(x, bits));
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public long[] bulkToLong() {
+    h.toLong(in, out, 0, in.length);
+    return out;
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public long[] bulkToRange() {
+    h.toRange(in, out, 0, in.length, bound);
+    return out;
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public long[] bulkToBits() {
+    h.toBits(in, out, 0, in.length, bits);
+    return out;
+  }
+}
@@ -0,0 +1,91 @@
+package arthenoid.hellwire.sampling.bench;
+
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.samplers.MemoryPlanner;
+import arthenoid.hellwire.sampling.samplers.Sampler;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The end-to-end cost of sampling: batched updates and queries of each sampler.
+ * The samplers are filled by the whole pregenerated stream before the measurement,
+ * the updates continue through the stream again.
+ * The error parameters are separate, by default only the relative error varies, the others can be varied by {@code -p}.
+ * The combinations for which the sampler does not fit into {@link #MEMORY_BUDGET} fail in the setup,
+ * so they are skipped instead of running out of memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SamplerBenchmark {
+  /** The memory in bytes a sampler may use, as planned by {@link MemoryPlanner}: half of the maximum heap */
+  public static final long MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+  
+  @Param({"Distinct", "Precision", "TrulyPerfectL2"})
+  public String sampler;
+  
+  @Param({"1024", "1048576", "1073741824"})
+  public long n;
+  
+  @Param({"0.1", "0.01"})
+  public double relativeError;
+  
+  @Param({"0.1"})
+  public double absoluteError;
+  
+  @Param({"0.1"})
+  public double failureProbability;
+  
+  @Param({"Units", "UnitsAndRoots", "Outlier", "Uniform", "PowerLaw"})
+  public String format;
+  
+  @Param({"Murmur"})
+  public String hash;
+  
+  protected Benchmarks.Updates updates;
+  protected Sampler s;
+  
+  @Setup
+  public void setup() throws ReflectiveOperationException, IOException {
+    Class<? extends Sampler> samplerClass = Class.forName("arthenoid.hellwire.sampling.samplers." + sampler + "Sampler").asSubclass(Sampler.class);
+    long memory = new MemoryPlanner(samplerClass, Benchmarks.context(hash).newHash().memoryUsed(), MEMORY_BUDGET)
+      .memoryFor(n, relativeError, absoluteError, failureProbability);
+    if (memory > MEMORY_BUDGET) throw new IllegalStateException("Skipped, the sampler needs " + memory + " bytes, the budget is " + MEMORY_BUDGET + " bytes");
+    updates = new Benchmarks.Updates(format, n);
+    s = samplerClass
+      .getConstructor(Context.class, long.class, double.class, double.class, double.class)
+      .newInstance(Benchmarks.context(hash), n, relativeError, absoluteError, failureProbability);
+    s.update(updates.indices, updates.frequencyChanges, 0, Benchmarks.STREAM);
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void update() {
+    int from = updates.next(Benchmarks.BATCH);
+    s.update(updates.indices, updates.frequencyChanges, from, from + Benchmarks.BATCH);
+  }
+  
+  @Benchmark
+  public boolean query(Blackhole bh) {
+    return s.query((index, frequency) -> {
+      bh.consume(index);
+      bh.consume(frequency);
+    });
+  }
+}
@@ -0,0 +1,139 @@
+package arthenoid.hellwire.sampling.bench;
+
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.structures.CountSketch;
+import arthenoid.hellwire.sampling.structures.L2Sketch;
+import arthenoid.hellwire.sampling.structures.MisraGries;
+import arthenoid.hellwire.sampling.structures.SpaceSaving;
+import arthenoid.hellwire.sampling.structures.SparseRecoverer;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The cost of an update and a query of the structures the samplers are built from.
+ * The structures are filled by the whole pregenerated stream before the measurement,
+ * the updates continue through the stream again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructureBenchmark {
+  @Param({"1024", "1048576", "1073741824"})
+  public long n;
+  
+  @Param({"PowerLaw"})
+  public String format;
+  
+  @Param({"Murmur"})
+  public String hash;
+  
+  /** The number of columns of the CountSketch, the inverse of the relative error of the L2Sketch and the capacity of the heavy hitter structures */
+  @Param({"64", "1024"})
+  public int size;
+  
+  protected Benchmarks.Updates updates;
+  protected CountSketch countSketch;
+  protected L2Sketch l2Sketch;
+  protected SparseRecoverer sparseRecoverer;
+  protected MisraGries misraGries;
+  protected SpaceSaving spaceSaving;
+  
+  @Setup
+  public void setup() throws ReflectiveOperationException, IOException {
+    updates = new Benchmarks.Updates(format, n);
+    Context context = Benchmarks.context(hash);
+    countSketch = new CountSketch(context, 5, size);
+    l2Sketch = new L2Sketch(context, 1.0 / size);
+    sparseRecoverer = new SparseRecoverer(context, n);
+    misraGries = new MisraGries(size);
+    spaceSaving = new SpaceSaving(size);
+    for (int i = 0; i < Benchmarks.STREAM; i++) {
+      long index = updates.indices[i], frequencyChange = updates.frequencyChanges[i];
+      countSketch.update(index, frequencyChange);
+      l2Sketch.update(index, frequencyChange);
+      sparseRecoverer.update(index, frequencyChange);
+      if (frequencyChange > 0) {
+        misraGries.update(index, frequencyChange);
+        spaceSaving.update(index, frequencyChange);
+      }
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void countSketchUpdate() {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) countSketch.update(updates.indices[i], updates.frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void countSketchQuery(Blackhole bh) {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) bh.consume(countSketch.query(updates.indices[i]));
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void l2SketchUpdate() {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) l2Sketch.update(updates.indices[i], updates.frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  public double l2SketchQuery() {
+    return l2Sketch.query();
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void sparseRecovererUpdate() {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) sparseRecoverer.update(updates.indices[i], updates.frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  public Object sparseRecovererQuery() {
+    return sparseRecoverer.query();
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void misraGriesUpdate() {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) if (updates.frequencyChanges[i] > 0) misraGries.update(updates.indices[i], updates.frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  public long misraGriesQueryMax() {
+    return misraGries.queryMax();
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(Benchmarks.BATCH)
+  public void spaceSavingUpdate() {
+    int from = updates.next(Benchmarks.BATCH);
+    for (int i = from; i < from + Benchmarks.BATCH; i++) if (updates.frequencyChanges[i] > 0) spaceSaving.update(updates.indices[i], updates.frequencyChanges[i]);
+  }
+  
+  @Benchmark
+  public long spaceSavingQueryMax() {
+    return spaceSaving.queryMax();
+  }
+}
@@ -6,7 +6,8 @@ public interface MemoryUser {
    * In case the used amount can change throughout the program execution, the upper limit is used.
    * The value is in units of eight bytes, which corresponds to one {@code long}, {@code double} or a reference to another object.
    * The memory used by owned (not shared objects is also included.
+   * The value is a {@code long}, as large samplers consist of more than 2<sup>31</sup> words in total.
    * @return The object's memory usage
    */
-  int memoryUsed();
+  long memoryUsed();
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package arthenoid.hellwire.sampling;
+
+/**
+ * A consumer of the results of queries, receiving them as primitive values without allocating a {@link Result}.
+ */
+@FunctionalInterface
+public interface ResultSink {
+  void accept(long index, double frequency);
+  
+  /**
+   * Called instead of {@link #accept(long, double)} for each failed subsampler by {@link arthenoid.hellwire.sampling.samplers.Sampler#queryAll(ResultSink)}.
+   */
+  default void failed() {}
+}
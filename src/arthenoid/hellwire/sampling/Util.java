@@ -1,16 +1,86 @@
 package arthenoid.hellwire.sampling;
 
 import java.util.Arrays;
-import java.util.Random;
 import java.util.function.ToLongFunction;
+import java.util.random.RandomGenerator;
 
 public class Util {
   private Util() {}
   
+  /** The odd integer closest to 2<sup>64</sup> divided by the golden ratio */
+  public static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+  
   public static double pow(double a, double b) {
     return b > 0 ? Math.pow(a, b) : a == 0 ? 0 : 1;
   }
   
+  /**
+   * Scrambles the bits of a value (the finalizer of SplitMix64), so every output bit depends on every input bit.
+   * @param x A value to scramble
+   * @return The scrambled value
+   */
+  public static long mix64(long x) {
+    x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+    x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+    return x ^ (x >>> 31);
+  }
+  
+  /** The Mersenne prime 2<sup>61</sup> - 1 */
+  public static final long MERSENNE_PRIME = (1L << 61) - 1;
+  
+  /**
+   * Reduces a value modulo {@link #MERSENNE_PRIME}.
+   * @param a A value
+   * @return A value between zero (inclusive) and the prime (exclusive)
+   */
+  public static long mersenneMod(long a) {
+    long r = a % MERSENNE_PRIME;
+    return r < 0 ? r + MERSENNE_PRIME : r;
+  }
+  
+  /**
+   * Adds two values modulo {@link #MERSENNE_PRIME}.
+   * @param a A value reduced modulo the prime
+   * @param b A value reduced modulo the prime
+   * @return The reduced sum
+   */
+  public static long mersenneAdd(long a, long b) {
+    long r = a + b;
+    return r >= MERSENNE_PRIME ? r - MERSENNE_PRIME : r;
+  }
+  
+  /**
+   * Multiplies two values modulo {@link #MERSENNE_PRIME} without any division.
+   * @param a A value reduced modulo the prime
+   * @param b A value reduced modulo the prime
+   * @return The reduced product
+   */
+  public static long mersenneMul(long a, long b) {
+    long low = a * b, r = (low & MERSENNE_PRIME) + ((Math.multiplyHigh(a, b) << 3) | (low >>> 61));
+    return r >= MERSENNE_PRIME ? r - MERSENNE_PRIME : r;
+  }
+  
+  /**
+   * Raises a value to the given power modulo {@link #MERSENNE_PRIME}.
+   * @param a A value reduced modulo the prime
+   * @param b A non-negative exponent
+   * @return The reduced power
+   */
+  public static long mersennePow(long a, long b) {
+    long ret = 1;
+    while (b > 0) {
+      long mask = -(b & 1);
+      ret = mersenneMul(ret, (a & mask) | (1 & ~mask));
+      b >>>= 1;
+      a = mersenneMul(a, a);
+    }
+    return ret;
+  }
+  
+  /**
+   * Raises a value to the given power modulo the given value.
+   * The intermediate products must fit into 64 bits, so the modulus must be at most 2<sup>32</sup>.
+   */
   public static long powMod(long a, long b, long m) {
     long ret = 1;
     while (b > 0) {
@@ -38,7 +108,7 @@ public class Util {
   public static double mutMedian(double[] vals, int from, int to) {
     return mutSelect((to - from) >> 1, vals, from, to);
   }
-
+  
   public static double mutSelect(int k, double[] vals, int from, int to) {
     k += from;
     for (;;) {
@@ -59,19 +129,54 @@ public class Util {
         if (vals[ifrom] >= pivot) swap(vals, ifrom, ito--);
           else ifrom++;
       }
-      if (ifrom > k) to = ifrom;
-        else from = ifrom;
+      if (ifrom > k) {
+        to = ifrom;
+        continue;
+      }
+      // The values equal to the pivot are moved to the front of the upper part, so repeated values always make progress
+      for (int i = ifrom; i < to; i++) if (vals[i] == pivot) swap(vals, i, ifrom++);
+      if (ifrom > k) return pivot;
+      from = ifrom;
+    }
+  }
+  
+  /**
+   * Moves the entries with the largest absolute values to the beginning, keeping their order.
+   * @param k The number of entries to keep
+   * @param keys Keys of the entries
+   * @param values Values of the entries
+   * @param count The number of entries
+   * @return The number of kept entries
+   */
+  public static int keepLargest(int k, long[] keys, double[] values, int count) {
+    return count <= k ? count : keepLargest(k, keys, values, count, new double[count]);
+  }
+  
+  /**
+   * Moves the entries with the largest absolute values to the beginning, keeping their order.
+   * @param selection An array of at least {@code count} values used for the selection
+   * @see #keepLargest(int, long[], double[], int)
+   */
+  public static int keepLargest(int k, long[] keys, double[] values, int count, double[] selection) {
+    if (count <= k) return count;
+    for (int i = 0; i < count; i++) selection[i] = -Math.abs(values[i]);
+    double threshold = -mutSelect(k - 1, selection, 0, count);
+    int kept = 0;
+    for (int i = 0; i < count && kept < k; i++) if (Math.abs(values[i]) >= threshold) {
+      keys[kept] = keys[i];
+      values[kept++] = values[i];
     }
+    return kept;
   }
   
-  public static long randomLong(Random random, long bound) {
+  public static long randomLong(RandomGenerator random, long bound) {
     if (bound <= Integer.MAX_VALUE) return random.nextInt((int) bound);
     long q = bound - 1, s = random.nextLong() >>> 1, r;
     while (s - (r = s % bound) + q < 0) s = random.nextLong() >>> 1;
     return r;
   }
   
-  public static ToLongFunction<Random> fractionalRandomLong(long numerator, long denominator) {
+  public static ToLongFunction<RandomGenerator> fractionalRandomLong(long numerator, long denominator) {
     long whole = numerator / denominator;
     double fraction = (numerator % denominator) / (double) denominator;
     return whole > 0
@@ -4,8 +4,15 @@ import arthenoid.hellwire.sampling.Result;
 import static arthenoid.hellwire.sampling.cli.Run.printTimeSince;
 import arthenoid.hellwire.sampling.context.Context;
 import arthenoid.hellwire.sampling.context.Hash;
+import arthenoid.hellwire.sampling.datagen.BlockFile;
 import arthenoid.hellwire.sampling.datagen.Format;
+import arthenoid.hellwire.sampling.metrics.MeteredSampler;
+import arthenoid.hellwire.sampling.metrics.Metrics;
+import arthenoid.hellwire.sampling.samplers.MemoryPlanner;
 import arthenoid.hellwire.sampling.samplers.Sampler;
+import arthenoid.hellwire.sampling.samplers.ShardedSampler;
+import arthenoid.hellwire.sampling.snapshot.Snapshot;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -20,6 +27,7 @@ import java.util.Iterator;
 import java.util.Locale;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -87,8 +95,9 @@ public class CLI {
       die("Invalid generator arguments");
       return;
     }
-    ArgParser ap = ArgParser.create(Opt.out, Opt.seed);
+    ArgParser ap = ArgParser.create(Opt.out, Opt.seed, Opt.blockSize, Opt.legacy, Opt.threads);
     tryParse(ap, args);
+    if (Opt.blockSize.value() > BlockFile.MAX_BLOCK_UPDATES) die("The block size can't exceed " + BlockFile.MAX_BLOCK_UPDATES);
     
     seed = Opt.seed.or(() -> (new Random()).nextLong());
     Format format;
@@ -108,12 +117,34 @@ public class CLI {
       seed
     )));
     
-    try (DataOutputStream out = new DataOutputStream(Opt.out.present() ? Files.newOutputStream(Opt.out.value()) : System.out)) {
-      out.writeUTF(name);
-      out.writeLong(seed);
-      out.writeLong(n);
-      out.writeLong(updates);
-      format.generate(out);
+    int threads = Opt.threads.or(() -> (long) Runtime.getRuntime().availableProcessors()).intValue();
+    if (Opt.legacy.present()) {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Opt.out.present() ? Files.newOutputStream(Opt.out.value()) : System.out,
+        BlockFile.BUFFER_SIZE
+      ))) {
+        out.writeUTF(name);
+        out.writeLong(seed);
+        out.writeLong(n);
+        out.writeLong(updates);
+        format.generate((index, frequencyChange) -> {
+          out.writeLong(index);
+          out.writeLong(frequencyChange);
+        }, threads);
+      } catch (IOException  e) {
+        die("IOException", e);
+      }
+      return;
+    }
+    try (BlockFile.Writer out = new BlockFile.Writer(
+      Opt.out.present() ? Files.newOutputStream(Opt.out.value()) : System.out,
+      name,
+      seed,
+      n,
+      updates,
+      Opt.blockSize.value().intValue()
+    )) {
+      format.generate(out, threads);
     } catch (IOException  e) {
       die("IOException", e);
     }
@@ -133,9 +164,19 @@ public class CLI {
       Opt.hash,
       Opt.seed,
       Opt.gen,
-      Opt.kMer
+      Opt.kMer,
+      Opt.buffer,
+      Opt.threads,
+      Opt.checkpoint,
+      Opt.checkpointInterval,
+      Opt.restore,
+      Opt.metrics,
+      Opt.memoryBudget,
+      Opt.randomGenerator,
+      Opt.exactQuery
     );
     tryParse(ap, args);
+    Run.checkRandomGenerator();
     if (!Opt.checkExclusive(Opt.domainSize, Opt.gen, Opt.kMer)) {
       if (Opt.domainSize.present()) die("Domain size needs to be specified only for the default input format.");
         else die("Conflicting input formats specified.");
@@ -152,11 +193,13 @@ public class CLI {
       InputProcessor ip;
       if (Opt.domainSize.present()) {
         n = Opt.domainSize.value();
-        ip = new InputProcessor.Text(in);
+        ip = Opt.in.present()
+          ? new InputProcessor.MappedText(Opt.in.value(), Runtime.getRuntime().availableProcessors())
+          : new InputProcessor.Text(in);
       } else if (Opt.gen.present()) {
         InputProcessor.Gen gip;
         try {
-          ip = gip = new InputProcessor.Gen(in);
+          ip = gip = Opt.in.present() ? new InputProcessor.MappedGen(Opt.in.value()) : new InputProcessor.Gen(in);
         } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException  e) {
           die("Invalid data format");
           return;
@@ -165,15 +208,31 @@ public class CLI {
         out.printf(LOCALE, "Test input format: %s with domain size of %d and %d updates (seed: %d)\n",  gip.name, format.n, format.updates, format.seed);
         n = format.n;
       } else if (Opt.kMer.present()) {
-        n = 1 << (2 * Opt.kMer.value());
-        ip = new InputProcessor.KMer(in, Opt.kMer.value(), out);
+        if (Opt.kMer.value() >= KMerExtractor.MAX_K) die("The codes of k-mers longer than " + (KMerExtractor.MAX_K - 1) + " do not fit into the domain.");
+        n = 1L << (2 * Opt.kMer.value());
+        ip = Opt.in.present()
+          ? new InputProcessor.MappedKMer(Opt.in.value(), Opt.kMer.value(), out, Runtime.getRuntime().availableProcessors())
+          : new InputProcessor.KMer(in, Opt.kMer.value(), out);
       } else {
         die("Missing domain size");
         return;
       }
       
       Sampler sampler;
-      try {
+      long i = 0;
+      if (Opt.restore.present()) {
+        Snapshot snapshot = Snapshot.restore(Opt.restore.value(), Opt.seed.present() ? Run.newContext(Opt.seed.value(), hasher) : Run.newContext(hasher));
+        sampler = snapshot.sampler;
+        i = snapshot.updates;
+        Class<?> restored = sampler instanceof ShardedSampler ? ((ShardedSampler) sampler).getShard(0).getClass() : sampler.getClass();
+        if (restored != samplerConstructor.getDeclaringClass()) die("The snapshot contains a different sampler.");
+        // The state of each index is in the shard it is routed to, so the sharding cannot change
+        int threads = sampler instanceof ShardedSampler ? ((ShardedSampler) sampler).threads() : 1;
+        if (Opt.threads.present() && Opt.threads.value() != threads) die("The snapshot was taken with " + threads + " thread(s), it has to be continued with as many (-T " + threads + ").");
+        out.println("Restored after " + i + " updates");
+      } else try {
+        MemoryPlanner planner = Run.getPlanner(samplerConstructor, hasher, Opt.threads.value().intValue());
+        if (planner != null) Run.plan(planner, n, out);
         sampler = Opt.seed.present()
           ? Run.createSampler(samplerConstructor, Opt.seed.value(), hasher, n)
           : Run.createSampler(samplerConstructor, hasher, n);
@@ -181,16 +240,39 @@ public class CLI {
         die("Sampler cannot be initialised", e);
         return;
       }
+      if (Opt.threads.value() > 1 && !(sampler instanceof ShardedSampler)) sampler = new ShardedSampler(sampler, Opt.threads.value().intValue());
       out.println("Sampler memory usage: " + sampler.memoryUsed());
+      ScheduledExecutorService metrics = Opt.metrics.present() ? Metrics.printEvery(System.err, Opt.metrics.value()) : null;
+      // The snapshots contain the sampler itself, not the metered one
+      Sampler metered = metrics == null ? sampler : new MeteredSampler(sampler);
       
-      long i = 0, period = Opt.period.value();
+      long period = Opt.period.value(), checkpointInterval = (long) (Opt.checkpointInterval.value() * 1e9), checkpointTime = System.nanoTime();
+      int bufferSize = (int) Math.min(Opt.buffer.value(), period);
+      long[]
+        buffIndex = new long[bufferSize],
+        buffDiff = new long[bufferSize];
       while (ip.hasData()) {
-        ip.update(sampler);
-        i++;
-        if (period > 0 && i % period == 0) out.println("After " + i + " updates: " + Run.formatQuery(sampler, ip));
+        int fill = ip.read(buffIndex, buffDiff, 0, (int) Math.min(bufferSize, period - i % period));
+        try {
+          metered.update(buffIndex, buffDiff, 0, fill);
+        } catch (IllegalArgumentException e) {
+          die("Invalid update", e);
+        }
+        i += fill;
+        if (fill > 0 && period > 0 && i % period == 0) out.println("After " + i + " updates: " + Run.formatQuery(metered, ip));
+        if (Opt.checkpoint.present() && System.nanoTime() - checkpointTime >= checkpointInterval) {
+          new Snapshot(sampler, i).save(Opt.checkpoint.value());
+          checkpointTime = System.nanoTime();
+        }
       }
-      Result result = sampler.query();
+      if (Opt.checkpoint.present()) new Snapshot(sampler, i).save(Opt.checkpoint.value());
+      Result result = metered.query();
       out.println("Final (after " + i + " updates): " + Run.formatResult(result, ip));
+      if (sampler instanceof ShardedSampler) ((ShardedSampler) sampler).close();
+      if (metrics != null) {
+        metrics.shutdownNow();
+        Metrics.print(System.err);
+      }
       if (Opt.gen.present() && result != null) {
         Format.Expectation expected = ((InputProcessor.Gen) ip).format.expected(sampler.p(), result.index);
         out.printf(LOCALE, "This index was expected with probability %f and frequency around %f.\n", expected.probability, expected.frequency);
@@ -223,9 +305,14 @@ public class CLI {
       Opt.seed,
       Opt.samplers,
       Opt.buffer,
-      Opt.kMer
+      Opt.kMer,
+      Opt.metrics,
+      Opt.memoryBudget,
+      Opt.randomGenerator,
+      Opt.exactQuery
     );
     tryParse(ap, args);
+    Run.checkRandomGenerator();
     
     Function<Context, Hash> hasher = Run.getHasher();
     Constructor<? extends Sampler> samplerConstructor = Run.getSamplerConstructor(samplerName);
@@ -237,6 +324,13 @@ public class CLI {
       for (int i = 0; i < m; i++) seeds[i] = Long.hashCode(r.nextLong());
       samplerFactory = (i, n) -> Run.createSampler(samplerConstructor, seeds[i], hasher, n);
     } else samplerFactory = (i, n) -> Run.createSampler(samplerConstructor, hasher, n);
+    MemoryPlanner planner = Run.getPlanner(samplerConstructor, hasher, 1);
+    ScheduledExecutorService metrics = null;
+    if (Opt.metrics.present()) {
+      metrics = Metrics.printEvery(System.err, Opt.metrics.value());
+      Run.SamplerFactory unmetered = samplerFactory;
+      samplerFactory = (i, n) -> new MeteredSampler(unmetered.create(i, n));
+    }
     
     if (Opt.out.present() && Files.isDirectory(Opt.out.value())) Opt.out.set(Opt.out.value().resolve(String.format(
       LOCALE,
@@ -250,17 +344,22 @@ public class CLI {
       long t = System.nanoTime();
       out.printf(
         LOCALE,
-        "Testing %sSampler\nRelative error:      %.2g\nAbsolute error:      %.2g\nFailure probability: %.2g\nHash:                %s\nSeed:                %s\n",
+        "Testing %sSampler\nRelative error:      %s\nAbsolute error:      %.2g\nFailure probability: %.2g\nHash:                %s\nRandom generator:    %s\nSeed:                %s\n",
         samplerName,
-        Opt.relativeError.value(),
+        planner == null ? String.format(LOCALE, "%.2g", Opt.relativeError.value()) : "planned for a memory budget of " + Opt.memoryBudget.value() + " bytes",
         Opt.absoluteError.value(),
         Opt.failureProbability.value(),
         Opt.hash.or("Murmur"),
+        Opt.randomGenerator.or("Random"),
         Opt.seed.present() ? Opt.seed.value() : "random"
       );
-      for (Path file : data) Run.testOn(file, m, samplerFactory, out);
+      for (Path file : data) Run.testOn(file, m, samplerFactory, planner, out);
       out.println("================================");
       printTimeSince(out, "All files total", t);
+      if (metrics != null) {
+        metrics.shutdownNow();
+        Metrics.print(System.err);
+      }
     } catch (IOException e) {
       die("IO exception", e);
     }
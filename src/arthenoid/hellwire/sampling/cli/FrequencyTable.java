@@ -0,0 +1,220 @@
+package arthenoid.hellwire.sampling.cli;
+
+import arthenoid.hellwire.sampling.Util;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The exact frequencies of the indices of a stream, the ground truth of tests.
+ * The sparse tables store only the updated indices, so they can be used for domains of any size.
+ */
+public interface FrequencyTable extends Closeable {
+  void add(long[] indices, long[] frequencyChanges, int from, int to);
+  long get(long index);
+  
+  @FunctionalInterface
+  interface EntryConsumer {
+    void accept(long index, long frequency);
+  }
+  
+  /**
+   * Calls the consumer for each index with a nonzero frequency, in no particular order.
+   */
+  void forEach(EntryConsumer consumer);
+  
+  @Override
+  default void close() throws IOException {}
+  
+  /**
+   * Chooses the table using the least memory which fits into the available heap, otherwise a table in a temporary file.
+   * @param n The domain size
+   * @param updates The maximum number of updates
+   */
+  static FrequencyTable create(long n, long updates) throws IOException {
+    Runtime runtime = Runtime.getRuntime();
+    long available = (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) / 2,
+      maxIndices = Math.min(n, updates),
+      denseSize = n * Long.BYTES,
+      sparseSize = 4 * maxIndices * Long.BYTES;
+    if (n <= Dense.MAX_SIZE && denseSize <= sparseSize && denseSize <= available) return new Dense((int) n);
+    if (sparseSize <= available) return new Sparse(16);
+    return new Mapped(maxIndices);
+  }
+  
+  /**
+   * The frequencies of all indices in an array.
+   */
+  class Dense implements FrequencyTable {
+    public static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+    
+    protected final long[] frequencies;
+    
+    public Dense(int n) {
+      frequencies = new long[n];
+    }
+    
+    @Override
+    public void add(long[] indices, long[] frequencyChanges, int from, int to) {
+      for (int i = from; i < to; i++) frequencies[(int) indices[i]] += frequencyChanges[i];
+    }
+    
+    @Override
+    public long get(long index) {
+      return index >= 0 && index < frequencies.length ? frequencies[(int) index] : 0;
+    }
+    
+    @Override
+    public void forEach(EntryConsumer consumer) {
+      for (int i = 0; i < frequencies.length; i++) if (frequencies[i] != 0) consumer.accept(i, frequencies[i]);
+    }
+  }
+  
+  /**
+   * The frequencies of the updated indices in an open addressing table (linear probing), grown when half full.
+   */
+  class Sparse implements FrequencyTable {
+    /** The indices increased by one, zero marks an empty slot */
+    protected long[] keys;
+    protected long[] frequencies;
+    protected int mask, size = 0;
+    
+    /**
+     * Creates an empty table.
+     * @param slots The initial number of slots, a power of two
+     */
+    public Sparse(int slots) {
+      keys = new long[slots];
+      frequencies = new long[slots];
+      mask = slots - 1;
+    }
+    
+    protected int slot(long key) {
+      int slot = (int) Util.mix64(key) & mask;
+      while (keys[slot] != key && keys[slot] != 0) slot = (slot + 1) & mask;
+      return slot;
+    }
+    
+    protected void grow() {
+      long[] oldKeys = keys, oldFrequencies = frequencies;
+      keys = new long[2 * oldKeys.length];
+      frequencies = new long[2 * oldKeys.length];
+      mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) if (oldKeys[i] != 0) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        frequencies[slot] = oldFrequencies[i];
+      }
+    }
+    
+    @Override
+    public void add(long[] indices, long[] frequencyChanges, int from, int to) {
+      for (int i = from; i < to; i++) {
+        long key = indices[i] + 1;
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+          if (2 * (size + 1) > keys.length) {
+            grow();
+            slot = slot(key);
+          }
+          keys[slot] = key;
+          size++;
+        }
+        frequencies[slot] += frequencyChanges[i];
+      }
+    }
+    
+    @Override
+    public long get(long index) {
+      int slot = slot(index + 1);
+      return keys[slot] == 0 ? 0 : frequencies[slot];
+    }
+    
+    @Override
+    public void forEach(EntryConsumer consumer) {
+      for (int i = 0; i < keys.length; i++) if (keys[i] != 0 && frequencies[i] != 0) consumer.accept(keys[i] - 1, frequencies[i]);
+    }
+  }
+  
+  /**
+   * The frequencies of the updated indices in an open addressing table (linear probing) of a fixed capacity
+   * stored in a temporary file, which is mapped in segments and deleted when closed.
+   * The file is sparse, so only the touched pages take space on the disk.
+   */
+  class Mapped implements FrequencyTable {
+    /** The number of slots in a segment, each slot has the index increased by one (zero when empty) and the frequency */
+    public static final int SEGMENT_SLOTS = 1 << 26;
+    
+    protected final FileChannel channel;
+    protected final LongBuffer[] segments;
+    protected final long mask, capacity;
+    protected long size = 0;
+    
+    /**
+     * Creates an empty table.
+     * @param capacity The maximum number of indices, the table has at least twice as many slots
+     */
+    public Mapped(long capacity) throws IOException {
+      this.capacity = capacity;
+      long slots = Long.highestOneBit(Math.max(1, 2 * capacity - 1)) << 1;
+      mask = slots - 1;
+      Path file = Files.createTempFile("frequencies", ".bin");
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+      segments = new LongBuffer[(int) ((slots + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS)];
+      for (int s = 0; s < segments.length; s++) {
+        long segmentSlots = Math.min(SEGMENT_SLOTS, slots - (long) s * SEGMENT_SLOTS);
+        segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, (long) s * SEGMENT_SLOTS * 2 * Long.BYTES, segmentSlots * 2 * Long.BYTES).asLongBuffer();
+      }
+    }
+    
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+    
+    protected long key(long slot) {
+      return segments[(int) (slot / SEGMENT_SLOTS)].get((int) (slot % SEGMENT_SLOTS) * 2);
+    }
+    
+    protected long slot(long key) {
+      long slot = Util.mix64(key) & mask, k;
+      while ((k = key(slot)) != key && k != 0) slot = (slot + 1) & mask;
+      return slot;
+    }
+    
+    @Override
+    public void add(long[] indices, long[] frequencyChanges, int from, int to) {
+      for (int i = from; i < to; i++) {
+        long key = indices[i] + 1, slot = slot(key);
+        LongBuffer segment = segments[(int) (slot / SEGMENT_SLOTS)];
+        int offset = (int) (slot % SEGMENT_SLOTS) * 2;
+        if (segment.get(offset) == 0) {
+          if (size == capacity) throw new IllegalStateException("Frequency table capacity exceeded");
+          segment.put(offset, key);
+          size++;
+        }
+        segment.put(offset + 1, segment.get(offset + 1) + frequencyChanges[i]);
+      }
+    }
+    
+    @Override
+    public long get(long index) {
+      long slot = slot(index + 1);
+      LongBuffer segment = segments[(int) (slot / SEGMENT_SLOTS)];
+      int offset = (int) (slot % SEGMENT_SLOTS) * 2;
+      return segment.get(offset) == 0 ? 0 : segment.get(offset + 1);
+    }
+    
+    @Override
+    public void forEach(EntryConsumer consumer) {
+      for (LongBuffer segment : segments) for (int i = 0; i < segment.limit(); i += 2) {
+        long key = segment.get(i), frequency = segment.get(i + 1);
+        if (key != 0 && frequency != 0) consumer.accept(key - 1, frequency);
+      }
+    }
+  }
+}
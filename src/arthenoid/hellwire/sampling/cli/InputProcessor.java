@@ -1,173 +1,764 @@
 package arthenoid.hellwire.sampling.cli;
 
+import arthenoid.hellwire.sampling.datagen.BlockFile;
 import arthenoid.hellwire.sampling.datagen.Format;
+import arthenoid.hellwire.sampling.metrics.Metrics;
 import arthenoid.hellwire.sampling.samplers.Sampler;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-public interface InputProcessor {
+public interface InputProcessor extends Closeable {
   boolean hasData();
   void update(UpdateConsumer consumer) throws IOException;
   default void update(Sampler sampler) throws IOException {
     update(sampler::update);
   }
+  
+  /**
+   * Reads a batch of updates into the given arrays.
+   * Stops when either the batch is full or there is no more data.
+   * @param indices The array for the updated indices
+   * @param frequencyChanges The array for the changes of frequency
+   * @param from The first position to fill (inclusive)
+   * @param to The end of the batch (exclusive)
+   * @return The number of updates read
+   */
+  default int read(long[] indices, long[] frequencyChanges, int from, int to) throws IOException {
+    int i = from;
+    while (i < to && hasData()) {
+      int j = i++;
+      update((index, frequencyChange) -> {
+        indices[j] = index;
+        frequencyChanges[j] = frequencyChange;
+      });
+    }
+    return i - from;
+  }
   default String decode(long index) {
     return Long.toString(index);
   }
   
+  @Override
+  default void close() throws IOException {}
+  
   @FunctionalInterface
   public interface UpdateConsumer {
     void update(long index, long frequencyChange);
   }
   
+  /**
+   * Parses white space separated pairs of decimal integers (index and frequency change) directly from bytes.
+   * The input is read through a direct buffer, only complete tokens are parsed and the rest is kept for the next read.
+   */
   class Text implements InputProcessor {
-    protected final Scanner in;
+    public static final int BUFFER_SIZE = 1 << 20;
+    
+    protected final ReadableByteChannel in;
+    protected final ByteBuffer buffer;
+    /** The next unparsed byte, the end of complete tokens and the end of the read data */
+    protected int position = 0, complete = 0, limit = 0;
+    protected boolean end = false;
     
     public Text(InputStream in) {
-      this.in = new Scanner(in, StandardCharsets.UTF_8);
+      this(Channels.newChannel(in));
+    }
+    
+    public Text(ReadableByteChannel in) {
+      this.in = in;
+      buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+    
+    /**
+     * Whether the byte is an ASCII white space character (as by {@link Character#isWhitespace(int)}),
+     * other bytes, including those of non-ASCII characters, belong to tokens.
+     */
+    protected static boolean isWhitespace(byte b) {
+      return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+    }
+    
+    /**
+     * Parses a token, which has to be an optionally signed decimal integer.
+     * The value is accumulated as a negative number, so the whole range of {@code long} is accepted.
+     * @param buffer The buffer
+     * @param from The start of the token
+     * @param to The end of the token
+     * @return The value
+     * @throws InputMismatchException If the token is not a number or it is out of the range of {@code long}
+     */
+    protected static long parse(ByteBuffer buffer, int from, int to) {
+      boolean negative = false;
+      byte sign = buffer.get(from);
+      if (sign == '-' || sign == '+') {
+        negative = sign == '-';
+        from++;
+      }
+      if (from == to) throw new InputMismatchException("Invalid number");
+      long value = 0;
+      try {
+        for (int i = from; i < to; i++) {
+          int digit = buffer.get(i) - '0';
+          if (digit < 0 || digit > 9) throw new InputMismatchException("Invalid number");
+          value = Math.subtractExact(Math.multiplyExact(value, 10), digit);
+        }
+        return negative ? value : Math.negateExact(value);
+      } catch (ArithmeticException e) {
+        throw new InputMismatchException("Number out of range");
+      }
+    }
+    
+    /**
+     * Moves the unparsed bytes to the start of the buffer and reads until there is a complete token or the input ends.
+     */
+    protected void fill() throws IOException {
+      buffer.limit(limit).position(position);
+      buffer.compact();
+      for (;;) {
+        if (!buffer.hasRemaining()) throw new InputMismatchException("Token too long");
+        int read = in.read(buffer);
+        if (read < 0) {
+          end = true;
+          break;
+        }
+        Metrics.recordBytes(getClass().getSimpleName(), read);
+        int c = buffer.position();
+        while (c > 0 && !isWhitespace(buffer.get(c - 1))) c--;
+        if (c > 0) break;
+      }
+      position = 0;
+      limit = buffer.position();
+      if (end) complete = limit;
+        else for (complete = limit; !isWhitespace(buffer.get(complete - 1)); complete--);
+    }
+    
+    /**
+     * Skips white space, reading more data if needed.
+     * @return Whether there is another token
+     */
+    protected boolean skip() throws IOException {
+      for (;;) {
+        while (position < complete && isWhitespace(buffer.get(position))) position++;
+        if (position < complete) return true;
+        if (end) return false;
+        fill();
+      }
+    }
+    
+    protected long next() throws IOException {
+      if (!skip()) throw new NoSuchElementException("Missing frequency change");
+      int from = position;
+      while (position < complete && !isWhitespace(buffer.get(position))) position++;
+      return parse(buffer, from, position);
+    }
+    
+    @Override
+    public boolean hasData() {
+      try {
+        return skip();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    
+    @Override
+    public void update(UpdateConsumer consumer) throws IOException {
+      long index = next();
+      consumer.update(index, next());
+    }
+    
+    @Override
+    public int read(long[] indices, long[] frequencyChanges, int from, int to) throws IOException {
+      int i = from;
+      for (; i < to && skip(); i++) {
+        indices[i] = next();
+        frequencyChanges[i] = next();
+      }
+      return i - from;
+    }
+  }
+  
+  /**
+   * Parses the text format from a file, mapping it in chunks which are parsed ahead in parallel.
+   * A chunk contains the tokens starting in it, so chunks can be parsed independently,
+   * and the tokens are paired into updates while reading.
+   */
+  class MappedText implements InputProcessor {
+    public static final int CHUNK_SIZE = 1 << 23, MAX_TOKEN = 64;
+    
+    protected static class Tokens {
+      protected long[] values = new long[CHUNK_SIZE / 8];
+      protected int count = 0;
+      
+      protected void add(long value) {
+        if (count == values.length) values = Arrays.copyOf(values, 2 * count);
+        values[count++] = value;
+      }
+    }
+    
+    protected final FileChannel channel;
+    protected final long size;
+    protected final int ahead;
+    protected final ArrayDeque<CompletableFuture<Tokens>> parsed = new ArrayDeque<>();
+    protected long nextChunk = 0;
+    protected Tokens current = null;
+    protected int position = 0;
+    
+    /**
+     * Opens the file.
+     * @param path The file
+     * @param threads The number of chunks parsed ahead at once
+     */
+    public MappedText(Path path, int threads) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      size = channel.size();
+      ahead = Math.max(2, threads);
+      while (parsed.size() < ahead && nextChunk < size) submit();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+    
+    protected void submit() {
+      long chunk = nextChunk;
+      nextChunk += CHUNK_SIZE;
+      parsed.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return parse(chunk);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }));
+    }
+    
+    /**
+     * Parses the tokens starting in the chunk, the mapping extends to both sides to find the token boundaries.
+     */
+    protected Tokens parse(long chunk) throws IOException {
+      long mapFrom = Math.max(0, chunk - 1), mapTo = Math.min(size, chunk + CHUNK_SIZE + MAX_TOKEN);
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapFrom, mapTo - mapFrom);
+      int i = (int) (chunk - mapFrom), end = (int) (Math.min(size, chunk + CHUNK_SIZE) - mapFrom), limit = buffer.limit();
+      Metrics.recordBytes(getClass().getSimpleName(), end - i);
+      if (i > 0) while (i < end && !Text.isWhitespace(buffer.get(i - 1))) i++;
+      Tokens tokens = new Tokens();
+      for (;;) {
+        while (i < end && Text.isWhitespace(buffer.get(i))) i++;
+        if (i >= end) return tokens;
+        int from = i;
+        while (i < limit && !Text.isWhitespace(buffer.get(i))) i++;
+        if (i == limit && mapTo < size) throw new InputMismatchException("Token too long");
+        tokens.add(Text.parse(buffer, from, i));
+      }
+    }
+    
+    /**
+     * Makes sure the current chunk has a token left, waiting for the chunks parsed ahead.
+     * @return Whether there is another token
+     */
+    protected boolean advance() {
+      while (current == null || position == current.count) {
+        if (parsed.isEmpty()) return false;
+        try {
+          current = parsed.remove().join();
+        } catch (CompletionException e) {
+          if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+          throw e;
+        }
+        position = 0;
+        if (nextChunk < size) submit();
+      }
+      return true;
+    }
+    
+    protected long next() {
+      if (!advance()) throw new NoSuchElementException("Missing frequency change");
+      return current.values[position++];
     }
     
     @Override
     public boolean hasData() {
-      return in.hasNext();
+      return advance();
     }
     
     @Override
     public void update(UpdateConsumer consumer) {
-      consumer.update(in.nextLong(), in.nextLong());
+      long index = next();
+      consumer.update(index, next());
+    }
+    
+    @Override
+    public int read(long[] indices, long[] frequencyChanges, int from, int to) {
+      int i = from;
+      for (; i < to && advance(); i++) {
+        if (position + 1 < current.count) {
+          indices[i] = current.values[position];
+          frequencyChanges[i] = current.values[position + 1];
+          position += 2;
+        } else {
+          indices[i] = next();
+          frequencyChanges[i] = next();
+        }
+      }
+      return i - from;
     }
   }
   
+  /**
+   * Reads generated data from a stream, either in the original format of raw updates or in blocks (see {@link BlockFile}).
+   */
   class Gen implements InputProcessor {
     protected final DataInputStream in;
-    protected int i = 0;
+    /** The number of the following update and of the update after the last one to read */
+    protected long position = 0, end;
     
     public final String name;
     public final Format format;
+    /** The version of the data format, 1 for raw updates */
+    public final int version;
+    /** The number of updates in a block (in version 2) */
+    public final int blockUpdates;
+    /** The payload of the current block positioned at the following update */
+    protected ByteBuffer block = ByteBuffer.allocate(0);
+    protected int blockLeft = 0;
+    protected byte[] payload = new byte[0];
     
     public Gen(InputStream in) throws ClassNotFoundException, NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
-      this.in = new DataInputStream(in);
+      this.in = new DataInputStream(in.markSupported() ? in : new BufferedInputStream(in));
+      this.in.mark(Integer.BYTES);
+      if (this.in.readInt() == BlockFile.MAGIC) {
+        version = this.in.readInt();
+        if (version != BlockFile.VERSION) throw new IOException("Unsupported data format version: " + version);
+      } else {
+        this.in.reset();
+        version = 1;
+      }
       format = Run.getFormat(name = this.in.readUTF(), this.in.readLong(), this.in.readLong(), this.in.readLong());
+      blockUpdates = version == 1 ? 0 : this.in.readInt();
+      if (version > 1 && (blockUpdates <= 0 || blockUpdates > BlockFile.MAX_BLOCK_UPDATES)) throw new IOException("Invalid block size");
+      end = format.updates;
     }
     
     @Override
     public boolean hasData() {
-      return i < format.updates;
+      return position < end;
+    }
+    
+    /**
+     * Moves to the following block.
+     */
+    protected void nextBlock() throws IOException {
+      blockLeft = in.readInt();
+      int length = in.readInt();
+      if (payload.length < length) payload = new byte[length];
+      in.readFully(payload, 0, length);
+      block = ByteBuffer.wrap(payload, 0, length);
+      Metrics.recordBytes(getClass().getSimpleName(), BlockFile.BLOCK_HEADER_SIZE + length);
     }
     
     @Override
     public void update(UpdateConsumer consumer) throws IOException {
-      consumer.update(in.readLong(), in.readLong());
-      i++;
+      if (version == 1) {
+        consumer.update(in.readLong(), in.readLong());
+        Metrics.recordBytes(getClass().getSimpleName(), 2 * Long.BYTES);
+      } else {
+        if (blockLeft == 0) nextBlock();
+        long index = BlockFile.getVarLong(block);
+        consumer.update(index, BlockFile.unZigZag(BlockFile.getVarLong(block)));
+        blockLeft--;
+      }
+      position++;
+    }
+    
+    @Override
+    public int read(long[] indices, long[] frequencyChanges, int from, int to) throws IOException {
+      int i = from;
+      if (version == 1) {
+        for (; i < to && position < end; i++, position++) {
+          indices[i] = in.readLong();
+          frequencyChanges[i] = in.readLong();
+        }
+        Metrics.recordBytes(getClass().getSimpleName(), (i - from) * 2L * Long.BYTES);
+      } else {
+        while (i < to && position < end) {
+          if (blockLeft == 0) nextBlock();
+          int length = (int) Math.min(Math.min(to - i, blockLeft), end - position);
+          BlockFile.decode(block, indices, frequencyChanges, i, i + length);
+          blockLeft -= length;
+          position += length;
+          i += length;
+        }
+      }
+      return i - from;
     }
   }
   
-  class KMer implements InputProcessor {
-    protected final BufferedReader in;
-    protected final int k;
-    protected boolean data = true, nl = true;
-    protected int n = 0;
-    protected long kMer = 0, reverseKMer = 0;
+  /**
+   * Reads generated data by mapping the file after the header.
+   * The original updates are exposed as {@link LongBuffer} views, the blocks are decoded from the mapping.
+   * The file is mapped in consecutive segments, so it can be larger than a single mapping.
+   * Any range of the updates can be read, so a file can be split among several readers.
+   */
+  class MappedGen extends Gen {
+    /** The size of one mapping in bytes, a multiple of the size of an update */
+    public static final long SEGMENT_SIZE = 1L << 30;
+    public static final int UPDATE_SIZE = 2 * Long.BYTES;
     
+    protected final FileChannel channel;
+    protected final long offset;
+    /** The offsets of the blocks followed by the end of the last one */
+    protected final long[] blockOffsets;
+    /** The mapped segment holding the original updates from {@code segmentStart}, indices and changes interleaved */
+    protected LongBuffer segment;
+    protected long segmentStart;
+    /** The mapped segment holding whole blocks from the block {@code blocksStart} to {@code blocksEnd} (exclusive) */
+    protected ByteBuffer blocks;
+    protected int blocksStart = 0, blocksEnd = 0, nextBlock;
+    
+    public MappedGen(Path path) throws ClassNotFoundException, NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
+      this(path, 0, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Opens the file to read a range of the updates.
+     * @param path The file
+     * @param from The first update to read (inclusive)
+     * @param to The last update to read (exclusive), limited by the number of updates
+     */
+    public MappedGen(Path path, long from, long to) throws ClassNotFoundException, NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
+      super(Files.newInputStream(path));
+      in.close();
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      new DataOutputStream(header).writeUTF(name);
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      if (version == 1) {
+        offset = header.size() + 3 * Long.BYTES;
+        if (channel.size() < offset + format.updates * UPDATE_SIZE) throw new EOFException("Data file is truncated");
+        blockOffsets = null;
+      } else {
+        offset = header.size() + 3 * Long.BYTES + 3 * Integer.BYTES;
+        blockOffsets = BlockFile.readIndex(channel, BlockFile.blocks(format.updates, blockUpdates));
+      }
+      end = Math.min(to, format.updates);
+      if (from < 0 || from > end) throw new IllegalArgumentException("Invalid range of updates.");
+      seek(from);
+    }
+    
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+    
+    /**
+     * Moves to an update.
+     * @param update The number of the update
+     */
+    protected void seek(long update) throws IOException {
+      position = segmentStart = update;
+      segment = LongBuffer.allocate(0);
+      if (version == 1 || update == format.updates) return;
+      nextBlock = (int) (update / blockUpdates);
+      nextBlock();
+      int skipped = (int) (update % blockUpdates);
+      BlockFile.skip(block, skipped);
+      blockLeft -= skipped;
+    }
+    
+    /**
+     * Moves to the following block, mapping the blocks following it if it is not mapped.
+     */
+    @Override
+    protected void nextBlock() throws IOException {
+      if (nextBlock >= blocksEnd) {
+        blocksStart = blocksEnd = nextBlock;
+        do blocksEnd++;
+          while (blocksEnd < blockOffsets.length - 1 && blockOffsets[blocksEnd + 1] - blockOffsets[blocksStart] <= SEGMENT_SIZE);
+        blocks = channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[blocksStart], blockOffsets[blocksEnd] - blockOffsets[blocksStart]);
+      }
+      int start = (int) (blockOffsets[nextBlock] - blockOffsets[blocksStart]);
+      blockLeft = blocks.getInt(start);
+      block = blocks.slice(start + BlockFile.BLOCK_HEADER_SIZE, blocks.getInt(start + Integer.BYTES));
+      Metrics.recordBytes(getClass().getSimpleName(), BlockFile.BLOCK_HEADER_SIZE + block.limit());
+      nextBlock++;
+    }
+    
+    /**
+     * Provides the following updates without copying, only for the original format.
+     * The view does not cross a segment boundary, so it may be shorter than requested.
+     * @param updates The maximum number of updates
+     * @return A buffer with the indices and frequency changes interleaved, empty if there is no more data
+     */
+    public LongBuffer slice(int updates) throws IOException {
+      if (version != 1) throw new UnsupportedOperationException("Only the original format can be sliced");
+      if (position - segmentStart == segment.capacity() / 2 && hasData()) {
+        segmentStart = position;
+        long length = Math.min(SEGMENT_SIZE, (end - position) * UPDATE_SIZE);
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, offset + position * UPDATE_SIZE, length).asLongBuffer();
+      }
+      int from = (int) (position - segmentStart), length = Math.min(updates, segment.capacity() / 2 - from);
+      position += length;
+      Metrics.recordBytes(getClass().getSimpleName(), (long) length * UPDATE_SIZE);
+      return segment.slice(2 * from, 2 * length);
+    }
+    
+    @Override
+    public void update(UpdateConsumer consumer) throws IOException {
+      if (version != 1) {
+        super.update(consumer);
+        return;
+      }
+      LongBuffer update = slice(1);
+      consumer.update(update.get(0), update.get(1));
+    }
+    
+    @Override
+    public int read(long[] indices, long[] frequencyChanges, int from, int to) throws IOException {
+      if (version != 1) return super.read(indices, frequencyChanges, from, to);
+      int i = from;
+      while (i < to && hasData()) {
+        LongBuffer updates = slice(to - i);
+        for (int j = 0; j < updates.limit(); j += 2, i++) {
+          indices[i] = updates.get(j);
+          frequencyChanges[i] = updates.get(j + 1);
+        }
+      }
+      return i - from;
+    }
+  }
+  
+  /**
+   * Reads canonical k-mers from the batches of a {@link KMerExtractor}, printing the FASTA headers when they are reached.
+   */
+  abstract class KMerReader implements InputProcessor {
+    protected final int k;
+    protected final KMerExtractor extractor;
     protected final PrintStream out;
+    protected KMerExtractor.Batch batch = null;
+    protected int position = 0, header = 0;
     
-    public KMer(InputStream ins, long k, PrintStream out) throws IOException {
-      in = new BufferedReader(new InputStreamReader(ins, StandardCharsets.UTF_8));
+    protected KMerReader(long k, PrintStream out) {
       this.k = (int) k;
+      extractor = new KMerExtractor(this.k);
       this.out = out;
-      read();
     }
     
-    public static final int
-      C = 0b00,
-      G = 0b01,
-      A = 0b10,
-      T = 0b11,
-      U = T;
-    
-    protected final void add(long nuc) {
-      kMer = (kMer << 2) | nuc;
-      reverseKMer = (kMer >> 2) | ((nuc ^ 0b01) << (2 * (k - 1)));
-      if (n < k) n++;
-        else kMer &= (1 << (2 * k)) - 1;
-    }
+    /**
+     * Provides the next batch of k-mers.
+     * @return The batch or {@code null} if there is no more data
+     */
+    protected abstract KMerExtractor.Batch nextBatch() throws IOException;
     
-    protected final void read() throws IOException {
+    protected boolean advance() throws IOException {
       for (;;) {
-        boolean onl = nl;
-        switch (in.read()) {
-          case -1:
-            data = false;
-            return;
-          case '\r':
-          case '\n':
-            nl = true;
-            break;
-          case '>':
-          case ';':
-            if (onl) {
-              String comment = in.readLine();
-              if (out != null) out.println("[FASTA] " + comment);
-            } else kMer = reverseKMer = n = 0;
-            break;
-          case 'C':
-            add(C);
-            break;
-          case 'G':
-            add(G);
-            break;
-          case 'A':
-            add(A);
-            break;
-          case 'T':
-            add(T);
-            break;
-          case 'U':
-            add(U);
-            break;
-          default:
-            kMer = reverseKMer = n = 0;
+        if (batch != null) {
+          for (; header < batch.headers.size() && batch.headerPositions.get(header) <= position; header++) {
+            if (out != null) out.println("[FASTA] " + batch.headers.get(header));
+          }
+          if (position < batch.count) return true;
         }
-        if (n == k) return;
+        if ((batch = nextBatch()) == null) return false;
+        position = header = 0;
       }
     }
     
     @Override
     public boolean hasData() {
-      return data;
+      try {
+        return advance();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
     }
     
     @Override
     public void update(UpdateConsumer consumer) throws IOException {
-      read();
-      consumer.update(Math.min(kMer, reverseKMer), 1);
+      if (!advance()) throw new NoSuchElementException();
+      consumer.update(batch.codes[position++], 1);
+    }
+    
+    @Override
+    public int read(long[] indices, long[] frequencyChanges, int from, int to) throws IOException {
+      int i = from;
+      while (i < to && advance()) {
+        int length = Math.min(to - i, batch.count - position);
+        System.arraycopy(batch.codes, position, indices, i, length);
+        Arrays.fill(frequencyChanges, i, i + length, 1);
+        position += length;
+        i += length;
+      }
+      return i - from;
     }
     
     @Override
     public String decode(long index) {
-      StringBuilder ret = new StringBuilder();
-      for (int i = 0; i < k; i++, index >>>= 2) switch ((int) (index & 0b11)) {
-        case C:
-          ret.append('C');
-          break;
-        case G:
-          ret.append('G');
-          break;
-        case A:
-          ret.append('A');
-          break;
-        case T:
-          ret.append('T');
-          break;
+      return extractor.decode(index);
+    }
+  }
+  
+  /**
+   * Extracts k-mers from a stream, one buffer at a time.
+   */
+  class KMer extends KMerReader {
+    protected final ReadableByteChannel in;
+    protected final ByteBuffer buffer;
+    protected final KMerExtractor.Batch codes;
+    protected boolean end = false;
+    
+    public KMer(InputStream in, long k, PrintStream out) {
+      super(k, out);
+      this.in = Channels.newChannel(in);
+      buffer = ByteBuffer.allocateDirect(Text.BUFFER_SIZE);
+      codes = new KMerExtractor.Batch(Text.BUFFER_SIZE);
+    }
+    
+    @Override
+    protected KMerExtractor.Batch nextBatch() throws IOException {
+      if (end) return null;
+      codes.clear();
+      buffer.clear();
+      int read;
+      while ((read = in.read(buffer)) == 0);
+      if (read < 0) {
+        end = true;
+        extractor.finish(codes);
+      } else {
+        extractor.extract(buffer, 0, buffer.position(), codes);
+        Metrics.recordBytes(getClass().getSimpleName(), read);
+      }
+      return codes;
+    }
+  }
+  
+  /**
+   * Extracts k-mers from a file, mapping it in chunks which are extracted ahead in parallel.
+   * A chunk contains the k-mers ending in it, so the chunks can start at any byte.
+   * The state at the start of each chunk is carried forward from the state at the start of the previous one
+   * (see {@link KMerExtractor#prime(ByteBuffer, int, KMerExtractor)}), looking back at most over the previous chunk;
+   * these cheap steps are chained in order while the extractions run in parallel.
+   * A header ending a chunk is followed window by window until its line ends.
+   * The batches are reused once they are read, so at most one more than the chunks extracted ahead are allocated.
+   */
+  class MappedKMer extends KMerReader {
+    public static final int CHUNK_SIZE = 1 << 22, WINDOW = 1 << 16;
+    
+    protected final FileChannel channel;
+    protected final long size;
+    protected final int ahead;
+    protected final ArrayDeque<CompletableFuture<KMerExtractor.Batch>> extracted = new ArrayDeque<>();
+    protected final ConcurrentLinkedQueue<KMerExtractor.Batch> free = new ConcurrentLinkedQueue<>();
+    protected long nextChunk = 0;
+    /** The state at the start of the last submitted chunk */
+    protected CompletableFuture<KMerExtractor> chunkStart;
+    
+    /**
+     * Opens the file.
+     * @param path The file
+     * @param k The length of k-mers
+     * @param out The output for the FASTA headers or {@code null}
+     * @param threads The number of chunks extracted ahead at once
+     */
+    public MappedKMer(Path path, long k, PrintStream out, int threads) throws IOException {
+      super(k, out);
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      size = channel.size();
+      ahead = Math.max(2, threads);
+      while (extracted.size() < ahead && nextChunk < size) submit();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+    
+    protected void submit() {
+      long chunk = nextChunk;
+      nextChunk += CHUNK_SIZE;
+      chunkStart = chunk == 0
+        ? CompletableFuture.completedFuture(new KMerExtractor(k))
+        : chunkStart.thenApplyAsync(origin -> {
+          try {
+            return start(chunk - CHUNK_SIZE, chunk, origin);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      extracted.add(chunkStart.thenApplyAsync(start -> {
+        try {
+          return extract(chunk, new KMerExtractor(start));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }));
+    }
+    
+    /**
+     * Finds the state at the start of a chunk from the state at the start of the previous one.
+     */
+    protected KMerExtractor start(long previous, long chunk, KMerExtractor origin) throws IOException {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, previous, chunk - previous);
+      KMerExtractor start = new KMerExtractor(k);
+      start.prime(buffer, (int) (chunk - previous), origin);
+      return start;
+    }
+    
+    protected KMerExtractor.Batch extract(long chunk, KMerExtractor chunkExtractor) throws IOException {
+      long chunkEnd = Math.min(size, chunk + CHUNK_SIZE), mapTo = Math.min(size, chunkEnd + WINDOW);
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk, mapTo - chunk);
+      int to = (int) (chunkEnd - chunk);
+      Metrics.recordBytes(getClass().getSimpleName(), to);
+      KMerExtractor.Batch codes = free.poll();
+      if (codes == null) codes = new KMerExtractor.Batch(CHUNK_SIZE);
+        else codes.clear();
+      chunkExtractor.extract(buffer, 0, to, codes);
+      // A header ending the chunk is followed window by window until its line ends
+      while (!chunkExtractor.finishHeader(buffer, to, buffer.limit(), codes) && mapTo < size) {
+        long windowFrom = mapTo;
+        mapTo = Math.min(size, windowFrom + WINDOW);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowFrom, mapTo - windowFrom);
+        to = 0;
+      }
+      chunkExtractor.finish(codes);
+      return codes;
+    }
+    
+    @Override
+    protected KMerExtractor.Batch nextBatch() {
+      // The batch being replaced has been read entirely
+      if (batch != null) free.add(batch);
+      if (extracted.isEmpty()) return null;
+      KMerExtractor.Batch next;
+      try {
+        next = extracted.remove().join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        throw e;
       }
-      return ret.reverse().toString();
+      if (nextChunk < size) submit();
+      return next;
     }
   }
 }
\ No newline at end of file
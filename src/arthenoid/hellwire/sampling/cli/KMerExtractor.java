@@ -0,0 +1,262 @@
+package arthenoid.hellwire.sampling.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extracts canonical k-mers from FASTA data byte by byte, classifying bytes by a lookup table.
+ * A k-mer is encoded by two bits per nucleotide (the last one in the lowest bits),
+ * its canonical form is the smaller (unsigned) of the codes of the k-mer and its reverse complement.
+ * K-mers continue across line breaks, a header line (starting by {@code >} or {@code ;}) or any other byte resets them.
+ * The state is kept between calls, so the data can be processed in parts.
+ */
+public class KMerExtractor {
+  public static final int MAX_K = 32;
+  public static final byte
+    C = 0b00,
+    G = 0b01,
+    A = 0b10,
+    T = 0b11,
+    U = T;
+  protected static final byte INVALID = -1, NEWLINE = -2, IGNORED = -3;
+  protected static final byte[] CODES = new byte[256];
+  
+  static {
+    Arrays.fill(CODES, INVALID);
+    CODES['C'] = CODES['c'] = C;
+    CODES['G'] = CODES['g'] = G;
+    CODES['A'] = CODES['a'] = A;
+    CODES['T'] = CODES['t'] = T;
+    CODES['U'] = CODES['u'] = U;
+    CODES['\n'] = NEWLINE;
+    CODES['\r'] = IGNORED;
+  }
+  
+  /**
+   * The k-mer codes extracted from a part of the data and the headers found in it.
+   */
+  public static class Batch {
+    public long[] codes;
+    public int count = 0;
+    public final List<String> headers = new ArrayList<>();
+    /** The number of codes preceding each header */
+    public final List<Integer> headerPositions = new ArrayList<>();
+    
+    public Batch(int capacity) {
+      codes = new long[capacity];
+    }
+    
+    public void clear() {
+      count = 0;
+      headers.clear();
+      headerPositions.clear();
+    }
+    
+    protected void ensure(int extra) {
+      if (count + extra > codes.length) codes = Arrays.copyOf(codes, Math.max(count + extra, 2 * codes.length));
+    }
+  }
+  
+  protected final int k, topShift;
+  protected final long mask;
+  protected long kMer = 0, reverse = 0;
+  protected int n = 0;
+  protected boolean lineStart = true, header = false;
+  /** The text of the current header, {@code null} if it is not collected */
+  protected ByteArrayOutputStream headerText = null;
+  
+  public KMerExtractor(int k) {
+    if (k < 1 || k > MAX_K) throw new IllegalArgumentException("k must be between 1 and " + MAX_K);
+    this.k = k;
+    topShift = 2 * (k - 1);
+    mask = -1L >>> (Long.SIZE - 2 * k);
+  }
+  
+  /**
+   * Creates an extractor continuing from the state of another one, without the text of a header in progress.
+   */
+  public KMerExtractor(KMerExtractor other) {
+    k = other.k;
+    topShift = other.topShift;
+    mask = other.mask;
+    kMer = other.kMer;
+    reverse = other.reverse;
+    n = other.n;
+    lineStart = other.lineStart;
+    header = other.header;
+  }
+  
+  protected static boolean isHeaderStart(byte b) {
+    return b == '>' || b == ';';
+  }
+  
+  protected final void add(int code) {
+    kMer = ((kMer << 2) | code) & mask;
+    reverse = (reverse >>> 2) | ((long) (code ^ 0b01) << topShift);
+    if (n < k) n++;
+  }
+  
+  protected final long canonical() {
+    return Long.compareUnsigned(kMer, reverse) <= 0 ? kMer : reverse;
+  }
+  
+  /**
+   * Processes the bytes in the range, adding the k-mers ending in it to the batch.
+   * @param buffer The data
+   * @param from The start of the range (inclusive)
+   * @param to The end of the range (exclusive)
+   * @param batch The output batch
+   */
+  public void extract(ByteBuffer buffer, int from, int to, Batch batch) {
+    batch.ensure(to - from);
+    long[] codes = batch.codes;
+    int count = batch.count;
+    for (int i = from; i < to; i++) {
+      byte b = buffer.get(i);
+      if (header) {
+        if (b == '\n') {
+          endHeader(batch, count);
+        } else if (headerText != null) {
+          headerText.write(b);
+        }
+        continue;
+      }
+      byte code = CODES[b & 0xFF];
+      if (code >= 0) {
+        add(code);
+        lineStart = false;
+        if (n == k) codes[count++] = canonical();
+      } else if (code == NEWLINE) {
+        lineStart = true;
+      } else if (code == INVALID) {
+        n = 0;
+        if (lineStart && isHeaderStart(b)) {
+          header = true;
+          headerText = new ByteArrayOutputStream();
+        }
+        lineStart = false;
+      }
+    }
+    batch.count = count;
+  }
+  
+  /**
+   * Continues a header started before the range until its end, ignoring anything after it.
+   * @param buffer The data
+   * @param from The start of the range (inclusive)
+   * @param to The end of the range (exclusive)
+   * @param batch The output batch
+   * @return Whether no header is in progress after the range
+   */
+  public boolean finishHeader(ByteBuffer buffer, int from, int to, Batch batch) {
+    for (int i = from; i < to && header; i++) {
+      byte b = buffer.get(i);
+      if (b == '\n') endHeader(batch, batch.count);
+        else if (headerText != null) headerText.write(b);
+    }
+    return !header;
+  }
+  
+  /**
+   * Ends a header in progress at the end of the data.
+   * @param batch The output batch
+   */
+  public void finish(Batch batch) {
+    if (header) endHeader(batch, batch.count);
+  }
+  
+  protected void endHeader(Batch batch, int count) {
+    header = false;
+    lineStart = true;
+    if (headerText == null) return;
+    batch.headers.add(new String(headerText.toByteArray(), StandardCharsets.UTF_8).strip());
+    batch.headerPositions.add(count);
+    headerText = null;
+  }
+  
+  /**
+   * Finds the start of the line containing the position.
+   * @return The start or -1 if it is not within the buffer
+   */
+  protected static int lineStart(ByteBuffer buffer, int position) {
+    for (int i = position - 1; i >= 0; i--) if (buffer.get(i) == '\n') return i + 1;
+    return -1;
+  }
+  
+  /**
+   * Skips the ignored bytes (which do not end the start of a line).
+   * @return The first other position in the range or its end
+   */
+  protected static int skipIgnored(ByteBuffer buffer, int from, int to) {
+    while (from < to && CODES[buffer.get(from) & 0xFF] == IGNORED) from++;
+    return from;
+  }
+  
+  /**
+   * Whether the line from the start to the position is a header, using the state of the origin if it does not start within the buffer.
+   * @param start The start of the line as given by {@link #lineStart(ByteBuffer, int)}
+   */
+  protected static boolean isHeaderLine(ByteBuffer buffer, int start, int position, KMerExtractor origin) {
+    if (start < 0 && !origin.lineStart) return origin.header;
+    int first = skipIgnored(buffer, Math.max(start, 0), position);
+    return first < position && isHeaderStart(buffer.get(first));
+  }
+  
+  /**
+   * Sets the state as if the data up to the position had been processed, given the state at the start of the buffer.
+   * It looks back only until the state is determined: to the start of the line and over k - 1 nucleotides,
+   * reaching the start of the buffer only if the lines or the nucleotides do.
+   * A header in progress is skipped without being collected, it belongs to the part where it starts.
+   * @param buffer The data from the position of the origin
+   * @param position The position to start from
+   * @param origin An extractor in the state at the start of the buffer
+   */
+  public void prime(ByteBuffer buffer, int position, KMerExtractor origin) {
+    kMer = reverse = 0;
+    n = 0;
+    headerText = null;
+    int start = lineStart(buffer, position);
+    lineStart = (start >= 0 || origin.lineStart) && skipIgnored(buffer, Math.max(start, 0), position) == position;
+    header = isHeaderLine(buffer, start, position, origin);
+    if (header) return;
+    byte[] context = new byte[k - 1];
+    int collected = 0, i = position - 1;
+    boolean reset = false;
+    for (; collected < k - 1 && i >= 0; i--) {
+      byte b = buffer.get(i), code = CODES[b & 0xFF];
+      if (code >= 0) {
+        context[collected++] = code;
+      } else if (code == NEWLINE) {
+        if (isHeaderLine(buffer, lineStart(buffer, i), i, origin)) {
+          reset = true;
+          break;
+        }
+      } else if (code != IGNORED) {
+        reset = true;
+        break;
+      }
+    }
+    // The nucleotides reach the start of the buffer, so they continue those of the origin
+    if (!reset && i < 0) {
+      kMer = origin.kMer;
+      reverse = origin.reverse;
+      n = origin.n;
+    }
+    for (int j = collected - 1; j >= 0; j--) add(context[j]);
+  }
+  
+  /**
+   * Decodes a k-mer code into its nucleotides.
+   * @param code A k-mer code
+   * @return The k-mer
+   */
+  public String decode(long code) {
+    char[] nucleotides = new char[k];
+    for (int i = k - 1; i >= 0; i--, code >>>= 2) nucleotides[i] = "CGAT".charAt((int) (code & 0b11));
+    return new String(nucleotides);
+  }
+}
@@ -1,5 +1,6 @@
 package arthenoid.hellwire.sampling.cli;
 
+import arthenoid.hellwire.sampling.datagen.BlockFile;
 import java.nio.file.Path;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -43,6 +44,20 @@ public class Opt {
       }, names);
     }
     
+    /**
+     * A positive number of bytes, optionally followed by a binary prefix (k, M or G).
+     */
+    public static Val<Long> newByteSize(String... names) {
+      return new Val<>(value -> {
+        int shift = value.isEmpty() ? -1 : "kMG".indexOf(value.charAt(value.length() - 1));
+        long number = Long.parseLong(shift < 0 ? value : value.substring(0, value.length() - 1));
+        if (number <= 0) throw new IllegalArgumentException("Must be positive");
+        shift = 10 * (shift + 1);
+        if (number > Long.MAX_VALUE >> shift) throw new IllegalArgumentException("Too large");
+        return number << shift;
+      }, names);
+    }
+    
     public static Val<Double> newPositiveReal(String... names) {
       return new Val<>(value -> {
         double number = Double.parseDouble(value);
@@ -89,20 +104,31 @@ public class Opt {
   public static final Opt
     gen = new Opt("gen", "g"),
     time = new Opt("time", "t"),
-    distribution = new Opt("distribution", "D");
+    distribution = new Opt("distribution", "D"),
+    legacy = new Opt("legacy", "L"),
+    exactQuery = new Opt("exact-query", "E");
   public static final Val<Path>
     in = Val.newPath("in", "i"),
-    out = Val.newPath("out", "o");
+    out = Val.newPath("out", "o"),
+    checkpoint = Val.newPath("checkpoint", "c"),
+    restore = Val.newPath("restore", "R");
   public static final Val<Long>
     period = Val.newPositiveIntegral("period", "p").set(Long.MAX_VALUE),
     domainSize = Val.newPositiveIntegral("domain-size", "n"),
     seed = Val.newIntegral("seed", "s"),
     kMer = Val.newPositiveIntegral("k-mer", "k"),
     samplers = Val.newPositiveIntegral("samplers", "m").set(1000L),
-    buffer = Val.newPositiveIntegral("buffer", "b").set(1000000L);
+    buffer = Val.newPositiveIntegral("buffer", "b").set(1000000L),
+    threads = Val.newPositiveIntegral("threads", "T").set(1L),
+    blockSize = Val.newPositiveIntegral("block-size", "B").set((long) BlockFile.DEFAULT_BLOCK_UPDATES),
+    memoryBudget = Val.newByteSize("memory-budget", "u");
   public static final Val<Double>
     relativeError = Val.newPositiveReal("relative-error", "r", "ε").set(1e-2),
     absoluteError = Val.newPositiveReal("absolute-error", "a", "θ").set(1e-2),
-    failureProbability = Val.newPositiveReal("failure-probability", "f", "δ").set(1e-2);
-  public static final Val<String> hash = Val.newString("hash", "h");
+    failureProbability = Val.newPositiveReal("failure-probability", "f", "δ").set(1e-2),
+    checkpointInterval = Val.newPositiveReal("checkpoint-interval", "C").set(60.0),
+    metrics = Val.newPositiveReal("metrics", "M");
+  public static final Val<String>
+    hash = Val.newString("hash", "h"),
+    randomGenerator = Val.newString("random-generator", "G");
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package arthenoid.hellwire.sampling.cli;
 
 import arthenoid.hellwire.sampling.Result;
+import arthenoid.hellwire.sampling.ResultSink;
 import arthenoid.hellwire.sampling.Util;
 import static arthenoid.hellwire.sampling.cli.CLI.LOCALE;
 import static arthenoid.hellwire.sampling.cli.CLI.die;
@@ -8,21 +9,34 @@ import arthenoid.hellwire.sampling.context.BasicContext;
 import arthenoid.hellwire.sampling.context.Context;
 import arthenoid.hellwire.sampling.context.Hash;
 import arthenoid.hellwire.sampling.context.MurmurHash;
+import arthenoid.hellwire.sampling.context.SplittableContext;
 import arthenoid.hellwire.sampling.datagen.Format;
 import arthenoid.hellwire.sampling.datagen.SUFormat;
+import arthenoid.hellwire.sampling.samplers.MemoryPlanner;
+import arthenoid.hellwire.sampling.samplers.PrecisionSampler;
 import arthenoid.hellwire.sampling.samplers.Sampler;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.random.RandomGeneratorFactory;
 import java.util.regex.Pattern;
-import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -44,18 +58,90 @@ public class Run {
     }
   }
   
+  /**
+   * Checks that the random generator, if given, is available.
+   */
+  protected static void checkRandomGenerator() {
+    if (!Opt.randomGenerator.present()) return;
+    try {
+      RandomGeneratorFactory.of(Opt.randomGenerator.value());
+    } catch (IllegalArgumentException e) {
+      die("Random generator not found");
+    }
+  }
+  
+  /**
+   * Creates a context with the given random generator, otherwise a {@link BasicContext}.
+   */
+  protected static Context newContext(long seed, Function<Context, Hash> hasher) {
+    return Opt.randomGenerator.present() ? SplittableContext.of(Opt.randomGenerator.value(), seed, hasher) : new BasicContext(seed, hasher);
+  }
+  
+  protected static Context newContext(Function<Context, Hash> hasher) {
+    return Opt.randomGenerator.present() ? SplittableContext.of(Opt.randomGenerator.value(), hasher) : new BasicContext(hasher);
+  }
+  
+  /**
+   * Finds the constructor of the sampler, with the flag of exact queries if they are requested.
+   */
   protected static Constructor<? extends Sampler> getSamplerConstructor(String name) {
+    Class<? extends Sampler> sampler;
     try {
-      return Class.forName("arthenoid.hellwire.sampling.samplers." + name + "Sampler")
-        .asSubclass(Sampler.class)
-        .getConstructor(Context.class, long.class, double.class, double.class, double.class);
-    } catch (ClassNotFoundException | NoSuchMethodException | SecurityException e) {
+      sampler = Class.forName("arthenoid.hellwire.sampling.samplers." + name + "Sampler").asSubclass(Sampler.class);
+    } catch (ClassNotFoundException e) {
+      die("Sampler not found");
+      return null;
+    }
+    if (Opt.exactQuery.present() && sampler != PrecisionSampler.class) die("Only the Precision sampler has exact queries");
+    try {
+      return Opt.exactQuery.present()
+        ? sampler.getConstructor(Context.class, long.class, double.class, double.class, double.class, boolean.class)
+        : sampler.getConstructor(Context.class, long.class, double.class, double.class, double.class);
+    } catch (NoSuchMethodException | SecurityException e) {
       die("Sampler not found");
       return null;
     }
   }
   
+  /**
+   * Creates the planner for the memory budget, if given.
+   * @param shards The number of shards sharing the budget
+   * @return The planner, or {@code null} without a budget
+   */
+  protected static MemoryPlanner getPlanner(Constructor<? extends Sampler> constructor, Function<Context, Hash> hasher, int shards) {
+    if (!Opt.memoryBudget.present()) return null;
+    try {
+      return new MemoryPlanner(constructor.getDeclaringClass(), hasher.apply(new BasicContext(0, hasher)).memoryUsed(), Opt.memoryBudget.value() / shards);
+    } catch (IllegalArgumentException e) {
+      die(e.getMessage());
+      return null;
+    }
+  }
+  
+  /**
+   * Sets the relative error of the created samplers to the one planned for the domain size and reports the plan.
+   * @throws IllegalArgumentException If the sampler does not fit into the budget
+   */
+  protected static void plan(MemoryPlanner planner, long n, PrintStream out) {
+    MemoryPlanner.Plan plan = planner.plan(n, Opt.relativeError.value(), Opt.absoluteError.value(), Opt.failureProbability.value());
+    Opt.relativeError.set(plan.relativeError);
+    out.printf(LOCALE, "Memory plan: relative error %.4g, failure probability %.2g, %d bytes%s\n",
+      plan.relativeError,
+      plan.failureProbability,
+      plan.memory,
+      plan.dimensions == null ? "" : " (" + plan.dimensions + ")"
+    );
+  }
+  
   protected static Sampler createSampler(Constructor<? extends Sampler> constructor, Context context, long n) throws IllegalAccessException, IllegalArgumentException, InstantiationException, InvocationTargetException {
+    if (Opt.exactQuery.present()) return constructor.newInstance(
+      context,
+      n,
+      Opt.relativeError.value(),
+      Opt.absoluteError.value(),
+      Opt.failureProbability.value(),
+      true
+    );
     return constructor.newInstance(
       context,
       n,
@@ -68,7 +154,7 @@ public class Run {
   protected static Sampler createSampler(Constructor<? extends Sampler> constructor, long seed, Function<Context, Hash> hasher, long n) throws IllegalAccessException, IllegalArgumentException, InstantiationException, InvocationTargetException {
     return createSampler(
       constructor,
-      new BasicContext(seed, hasher),
+      newContext(seed, hasher),
       n
     );
   }
@@ -76,7 +162,7 @@ public class Run {
   protected static Sampler createSampler(Constructor<? extends Sampler> constructor, Function<Context, Hash> hasher, long n) throws IllegalAccessException, IllegalArgumentException, InstantiationException, InvocationTargetException {
     return createSampler(
       constructor,
-      new BasicContext(hasher),
+      newContext(hasher),
       n
     );
   }
@@ -131,40 +217,56 @@ public class Run {
   
   public static final Predicate<String> HAS_FASTA_EXTENSION = Pattern.compile(".*\\.fa(s(ta)?)?", Pattern.CASE_INSENSITIVE).asMatchPredicate();
   
-  protected static void testOn(Path file, int m, SamplerFactory samplerFactory, PrintStream out) throws IOException {
+  /**
+   * Opens a test input, printing the reason if it cannot be used.
+   * @return The input processor or {@code null}
+   */
+  protected static InputProcessor openInput(Path file, PrintStream out) throws IOException {
+    if (HAS_FASTA_EXTENSION.test(file.toString())) {
+      if (!Opt.kMer.present()) {
+        out.println("Input is a FASTA file, but the value for k was not specified.");
+        return null;
+      }
+      if (Opt.kMer.value() >= KMerExtractor.MAX_K) {
+        out.println("The codes of k-mers longer than " + (KMerExtractor.MAX_K - 1) + " do not fit into the domain.");
+        return null;
+      }
+      return new InputProcessor.MappedKMer(file, Opt.kMer.value(), out, Runtime.getRuntime().availableProcessors());
+    }
+    try {
+      return new InputProcessor.MappedGen(file);
+    } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException  e) {
+      out.println("Invalid data format");
+      return null;
+    }
+  }
+  
+  /**
+   * Tests the samplers on a file.
+   * @param planner The planner of the memory budget, or {@code null} without a budget
+   */
+  protected static void testOn(Path file, int m, SamplerFactory samplerFactory, MemoryPlanner planner, PrintStream out) throws IOException {
     out.println("================================");
     out.println("Testing on file: " + file);
-    try (
-      InputStream in = Files.newInputStream(file)
-    ) {
-      long tt = System.nanoTime();
+    long tt = System.nanoTime();
+    try (InputProcessor ip = openInput(file, out)) {
+      if (ip == null) return;
       
-      int n, size;
-      InputProcessor ip;
-      if (HAS_FASTA_EXTENSION.test(file.toString())) {
-        if (!Opt.kMer.present()) {
-          out.println("Input is a FASTA file, but the value for k was not specified.");
-          return;
-        }
-        ip = new InputProcessor.KMer(in, Opt.kMer.value(), out);
-        n = 1 << (2 * Opt.kMer.value());
-        size = (int) Files.size(file);
-      } else {
-        InputProcessor.Gen gip;
-        try {
-          ip = gip = new InputProcessor.Gen(in);
-        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException  e) {
-          out.println("Invalid data format");
-          return;
-        }
+      long n, size;
+      if (ip instanceof InputProcessor.Gen) {
+        InputProcessor.Gen gip = (InputProcessor.Gen) ip;
         Format format = gip.format;
         out.printf(LOCALE, "Input format: %s with domain size of %d and %d updates (seed: %d)\n",  gip.name, format.n, format.updates, format.seed);
-        n = (int) format.n;
-        size = (int) format.updates;
+        n = format.n;
+        size = format.updates;
+      } else {
+        n = 1L << (2 * Opt.kMer.value());
+        size = Files.size(file);
       }
       
       double p;
       try {
+        if (planner != null) plan(planner, n, out);
         Sampler sampler = samplerFactory.create(0, n);
         out.println("Sampler memory usage: " + sampler.memoryUsed());
         p = sampler.p();
@@ -173,183 +275,252 @@ public class Run {
         return;
       }
       
-      int bufferSize = Math.min(Opt.buffer.value().intValue(), size);
-      long[]
-        buffIndex = new long[bufferSize],
-        buffDiff = new long[bufferSize];
-      AtomicLong
-        update = new AtomicLong(),
-        query = new AtomicLong();
-      long[] frequencies = new long[n];
-      Result[][] results;
-      
-      long t = System.nanoTime();
-      if (bufferSize < size) {
-        Sampler[] samplers = new Sampler[m];
-        try {
-          for (int i = 0; i < m; i++) samplers[i] = samplerFactory.create(i, n);
-        } catch (IllegalAccessException | IllegalArgumentException | InstantiationException | InvocationTargetException e) {
-          out.printf(LOCALE, "Samplers cannot be initialised: %s\n", CLI.getMessage(e));
-          return;
-        }
-        
-        while (ip.hasData()) {
-          int fill = 0;
-          while (fill < bufferSize && ip.hasData()) {
-            int index = fill;
-            ip.update((i, f) -> {
-              frequencies[(int) i] += f;
-              buffIndex[index] = i;
-              buffDiff[index] = f;
-            });
-            fill++;
+      try (FrequencyTable frequencies = FrequencyTable.create(n, size)) {
+        testOn(ip, frequencies, n, size, p, m, samplerFactory, out);
+      }
+      printTimeSince(out, "Total", tt);
+    }
+  }
+  
+  /**
+   * The samples of an index.
+   */
+  protected static class Samples {
+    public final long frequency;
+    public long count = 0;
+    public double frequencySum = 0, errorSum = 0;
+    
+    public Samples(long frequency) {
+      this.frequency = frequency;
+    }
+  }
+  
+  /**
+   * The samples of the subsamplers of a sampler, collected without allocating a result for each.
+   */
+  protected static class SamplerResults implements ResultSink {
+    public long[] indices = new long[16];
+    public double[] frequencies = new double[16];
+    public int count = 0, failed = 0;
+    
+    @Override
+    public void accept(long index, double frequency) {
+      if (count == indices.length) {
+        indices = Arrays.copyOf(indices, 2 * count);
+        frequencies = Arrays.copyOf(frequencies, 2 * count);
+      }
+      indices[count] = index;
+      frequencies[count++] = frequency;
+    }
+    
+    @Override
+    public void failed() {
+      failed++;
+    }
+  }
+  
+  /**
+   * Reads the following batch of updates and adds it to the ground truth.
+   * @return The number of updates read, zero at the end of the input
+   */
+  protected static int readBatch(InputProcessor ip, FrequencyTable frequencies, long[] indices, long[] frequencyChanges) throws IOException {
+    if (!ip.hasData()) return 0;
+    int to = ip.read(indices, frequencyChanges, 0, indices.length);
+    frequencies.add(indices, frequencyChanges, 0, to);
+    return to;
+  }
+  
+  protected static CompletableFuture<Integer> readBatch(InputProcessor ip, FrequencyTable frequencies, long[] indices, long[] frequencyChanges, Executor executor) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return readBatch(ip, frequencies, indices, frequencyChanges);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, executor);
+  }
+  
+  protected static void testOn(InputProcessor ip, FrequencyTable frequencies, long n, long size, double p, int m, SamplerFactory samplerFactory, PrintStream out) throws IOException {
+    int bufferSize = (int) Math.min(Opt.buffer.value(), size);
+    long[]
+      buffIndex = new long[bufferSize],
+      buffDiff = new long[bufferSize];
+    AtomicLong
+      update = new AtomicLong(),
+      query = new AtomicLong();
+    SamplerResults[] results;
+    
+    long t = System.nanoTime();
+    if (bufferSize < size) {
+      // Each sampler has its own context, so they can be constructed in parallel
+      Sampler[] samplers = new Sampler[m];
+      try {
+        IntStream.range(0, m).unordered().parallel().forEach(i -> {
+          try {
+            samplers[i] = samplerFactory.create(i, n);
+          } catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
+            throw new RuntimeException(e);
           }
-          int to = fill;
+        });
+      } catch (RuntimeException e) {
+        out.printf(LOCALE, "Samplers cannot be initialised: %s\n", CLI.getMessage(e));
+        return;
+      }
+      
+      // The following batch is read by another thread while the samplers process the current one,
+      // unless there is a single processor, where the reader would only evict the data of the samplers from the caches
+      long[][]
+        indexBuffers = {buffIndex, new long[bufferSize]},
+        diffBuffers = {buffDiff, new long[bufferSize]};
+      ExecutorService reader = Executors.newSingleThreadExecutor();
+      Executor readExecutor = Runtime.getRuntime().availableProcessors() > 1 ? reader : Runnable::run;
+      try {
+        CompletableFuture<Integer> next = readBatch(ip, frequencies, indexBuffers[0], diffBuffers[0], readExecutor);
+        for (int current = 0;; current ^= 1) {
+          int to = next.join(), following = current ^ 1;
+          if (to == 0) break;
+          long[] indices = indexBuffers[current], frequencyChanges = diffBuffers[current];
+          next = readBatch(ip, frequencies, indexBuffers[following], diffBuffers[following], readExecutor);
           Stream.of(samplers).unordered().parallel().forEach(s -> {
             long ut = System.nanoTime();
-            for (int i = 0; i < to; i++) s.update(buffIndex[i], buffDiff[i]);
+            s.update(indices, frequencyChanges, 0, to);
             update.addAndGet(System.nanoTime() - ut);
           });
         }
-        
-        results = Stream.of(samplers).unordered().parallel().map(s -> {
-          long qt = System.nanoTime();
-          Result[] r = s.queryAll().toArray(Result[]::new);
-          query.addAndGet(System.nanoTime() - qt);
-          return r;
-        }).toArray(Result[][]::new);
-      } else {
-        int fill = 0;
-        while (ip.hasData()) {
-          int index = fill;
-          ip.update((i, f) -> {
-            frequencies[(int) i] += f;
-            buffIndex[index] = i;
-            buffDiff[index] = f;
-          });
-          fill++;
-        }
-        int to = fill;
-        
-        results = IntStream.range(0, m).unordered().parallel().mapToObj(i -> {
-          Sampler s;
-          try {
-            s = samplerFactory.create(i, n);
-          } catch (IllegalAccessException | IllegalArgumentException | InstantiationException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-          }
-          long uqt = System.nanoTime();
-          for (int j = 0; j < to; j++) s.update(buffIndex[j], buffDiff[j]);
-          update.addAndGet(System.nanoTime() - uqt);
-          uqt = System.nanoTime();
-          Result[] r = s.queryAll().toArray(Result[]::new);
-          query.addAndGet(System.nanoTime() - uqt);
-          return r;
-        }).toArray(Result[][]::new);
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        throw e;
+      } finally {
+        reader.shutdownNow();
       }
-      printTime(out, "Update average", update.get() / m);
-      printTime(out, "Query average", query.get() / m);
-      printTimeSince(out, "Update and query total", t);
       
+      results = Stream.of(samplers).unordered().parallel().map(s -> {
+        SamplerResults r = new SamplerResults();
+        long qt = System.nanoTime();
+        s.queryAll(r);
+        query.addAndGet(System.nanoTime() - qt);
+        return r;
+      }).toArray(SamplerResults[]::new);
+    } else {
+      int fill = 0;
+      while (fill < bufferSize && ip.hasData()) fill += ip.read(buffIndex, buffDiff, fill, bufferSize);
+      int to = fill;
+      frequencies.add(buffIndex, buffDiff, 0, to);
       
-      t = System.nanoTime();
-      double[]
-        sampleFrequencies = new double[n],
-        sampleErrors = new double[n];
-      long[] sampled = new long[n];
-      long failed = 0, failedSub = 0, total = 0;
-      for (Result[] result : results) {
-        long f = 0;
-        for (Result r : result) if (r == null) {
-          f++;
-        } else {
-          int i = (int) r.index;
-          sampleFrequencies[i] += r.frequency;
-          sampleErrors[i] += Math.abs(r.frequency - frequencies[i]);
-          sampled[i]++;
+      results = IntStream.range(0, m).unordered().parallel().mapToObj(i -> {
+        Sampler s;
+        try {
+          s = samplerFactory.create(i, n);
+        } catch (IllegalAccessException | IllegalArgumentException | InstantiationException | InvocationTargetException e) {
+          throw new RuntimeException(e);
         }
-        if (f == result.length) failed++;
-        failedSub += f;
-        total += result.length;
-      }
-      if (failedSub == total) {
-        out.println("All samplers failed.");
-        return;
-      }
-      out.printf(
-        LOCALE,
-        "Failed samplers: %d/%d (%.2f%%)\n",
-        failed,
-        m,
-        failed * 100.0 / m
-      );
-      out.printf(
-        LOCALE,
-        "Failed subsamplers: %d/%d (%.2f%%)\n",
-        failedSub,
-        total,
-        failedSub * 100.0 / total
-      );
-      long samples = total - failedSub;
-      out.printf(
-        LOCALE,
-        "Samples: %d\n",
-        samples
-      );
-      out.println("Frequency estimates (absolute ~ relative):");
-      out.printf(
-        LOCALE,
-        "- Average sample error: %.3g ~ %.3g\n",
-        DoubleStream.of(sampleErrors).unordered().parallel().sum() / samples,
-        IntStream.range(0, n).unordered().parallel().filter(i -> sampled[i] > 0).mapToDouble(i -> sampleErrors[i] / frequencies[i]).sum() / samples
-      );
-      for (int i = 0; i < n; i++) if (sampled[i] > 0) sampleFrequencies[i] = Math.abs(sampleFrequencies[i] - frequencies[i] * sampled[i]);
-      out.printf(
-        LOCALE,
-        "- Average index average error: %.3g ~ %.3g\n",
-        DoubleStream.of(sampleFrequencies).unordered().parallel().sum() / samples,
-        IntStream.range(0, n).unordered().parallel().filter(i -> sampled[i] > 0).mapToDouble(i -> sampleFrequencies[i] / frequencies[i]).sum() / samples
-      );
-      double[]
-        weights = new double[n],
-        probabilities = new double[n],
-        sampleShares = new double[n];
-      for (int i = 0; i < n; i++) weights[i] = Util.pow(frequencies[i], p);
-      double
-        pNorm = DoubleStream.of(weights).unordered().parallel().sum(),
-        pNormCA = IntStream.range(0, n).unordered().parallel().filter(i -> sampled[i] > 0).mapToDouble(i -> weights[i]).sum();
-      for (int i = 0; i < n; i++) {
-        probabilities[i] = weights[i] / pNorm;
-        sampleShares[i] = sampled[i] / (double) samples;
+        long uqt = System.nanoTime();
+        s.update(buffIndex, buffDiff, 0, to);
+        update.addAndGet(System.nanoTime() - uqt);
+        SamplerResults r = new SamplerResults();
+        uqt = System.nanoTime();
+        s.queryAll(r);
+        query.addAndGet(System.nanoTime() - uqt);
+        return r;
+      }).toArray(SamplerResults[]::new);
+    }
+    printTime(out, "Update average", update.get() / m);
+    printTime(out, "Query average", query.get() / m);
+    printTimeSince(out, "Update and query total", t);
+    
+    
+    t = System.nanoTime();
+    Map<Long, Samples> sampled = new HashMap<>();
+    long failed = 0, failedSub = 0, total = 0;
+    for (SamplerResults result : results) {
+      for (int j = 0; j < result.count; j++) {
+        Samples samples = sampled.computeIfAbsent(result.indices[j], i -> new Samples(frequencies.get(i)));
+        samples.count++;
+        samples.frequencySum += result.frequencies[j];
+        samples.errorSum += Math.abs(result.frequencies[j] - samples.frequency);
       }
-      out.printf(
-        LOCALE,
-        "Total variation distance: %.4g\n- Coverage adjusted: %.4g with %.4g coverage\n",
-        IntStream.range(0, n).unordered().parallel().mapToDouble(i -> Math.abs(sampleShares[i] - probabilities[i])).sum() / 2,
-        IntStream.range(0, n).unordered().parallel().filter(i -> sampled[i] > 0).mapToDouble(i -> Math.abs(sampleShares[i] - weights[i] / pNormCA)).sum() / 2,
-        pNormCA / pNorm
-      );
-      out.printf(
+      if (result.count == 0) failed++;
+      failedSub += result.failed;
+      total += result.count + result.failed;
+    }
+    if (failedSub == total) {
+      out.println("All samplers failed.");
+      return;
+    }
+    out.printf(
+      LOCALE,
+      "Failed samplers: %d/%d (%.2f%%)\n",
+      failed,
+      m,
+      failed * 100.0 / m
+    );
+    out.printf(
+      LOCALE,
+      "Failed subsamplers: %d/%d (%.2f%%)\n",
+      failedSub,
+      total,
+      failedSub * 100.0 / total
+    );
+    long samples = total - failedSub;
+    out.printf(
+      LOCALE,
+      "Samples: %d\n",
+      samples
+    );
+    out.println("Frequency estimates (absolute ~ relative):");
+    out.printf(
+      LOCALE,
+      "- Average sample error: %.3g ~ %.3g\n",
+      sampled.values().stream().mapToDouble(s -> s.errorSum).sum() / samples,
+      sampled.values().stream().mapToDouble(s -> s.errorSum / s.frequency).sum() / samples
+    );
+    out.printf(
+      LOCALE,
+      "- Average index average error: %.3g ~ %.3g\n",
+      sampled.values().stream().mapToDouble(s -> Math.abs(s.frequencySum - s.frequency * s.count)).sum() / samples,
+      sampled.values().stream().mapToDouble(s -> Math.abs(s.frequencySum - s.frequency * s.count) / s.frequency).sum() / samples
+    );
+    double[] pNormSum = new double[1];
+    frequencies.forEach((i, f) -> pNormSum[0] += Util.pow(f, p));
+    double
+      pNorm = pNormSum[0],
+      pNormCA = sampled.values().stream().mapToDouble(s -> Util.pow(s.frequency, p)).sum();
+    // The indices which were not sampled contribute their probabilities, which sum to one with the others
+    out.printf(
+      LOCALE,
+      "Total variation distance: %.4g\n- Coverage adjusted: %.4g with %.4g coverage\n",
+      (1 + sampled.values().stream().mapToDouble(s -> {
+        double probability = Util.pow(s.frequency, p) / pNorm;
+        return Math.abs(s.count / (double) samples - probability) - probability;
+      }).sum()) / 2,
+      sampled.values().stream().mapToDouble(s -> Math.abs(s.count / (double) samples - Util.pow(s.frequency, p) / pNormCA)).sum() / 2,
+      pNormCA / pNorm
+    );
+    out.printf(
+      LOCALE,
+      "Kullback-Leibler divergence: %.4g\n",
+      sampled.values().stream().mapToDouble(s -> {
+        double share = s.count / (double) samples;
+        return share * Math.log(share * pNorm / Util.pow(s.frequency, p));
+      }).sum()
+    );
+    printTimeSince(out, "Result analysys", t);
+    
+    if (Opt.distribution.present()) {
+      t = System.nanoTime();
+      out.println("Distribution:");
+      SortedMap<Long, Double> shares = new TreeMap<>();
+      frequencies.forEach((i, f) -> shares.put(i, 0.0));
+      sampled.forEach((i, s) -> shares.put(i, s.count / (double) samples));
+      shares.forEach((i, share) -> out.printf(
         LOCALE,
-        "Kullback-Leibler divergence: %.4g\n",
-        IntStream.range(0, n).unordered().parallel().filter(i -> sampled[i] > 0).mapToDouble(i -> sampleShares[i] * Math.log(sampleShares[i] / probabilities[i])).sum()
-      );
-      printTimeSince(out, "Result analysys", t);
-      
-      if (Opt.distribution.present()) {
-        t = System.nanoTime();
-        out.println("Distribution:");
-        for (int i = 0; i < n; i++) out.printf(
-          LOCALE,
-          "- %d:\n  - Expected: %.3g\n  - Actual:   %.3g\n",
-          i,
-          probabilities[i],
-          sampleShares[i]
-        );
-        printTimeSince(out, "Distribution", t);
-      }
-      
-      printTimeSince(out, "Total", tt);
+        "- %d:\n  - Expected: %.3g\n  - Actual:   %.3g\n",
+        i,
+        Util.pow(frequencies.get(i), p) / pNorm,
+        share
+      ));
+      printTimeSince(out, "Distribution", t);
     }
   }
 }
\ No newline at end of file
@@ -1,21 +1,29 @@
 package arthenoid.hellwire.sampling.context;
 
 import arthenoid.hellwire.sampling.Util;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
+/**
+ * A context backed by {@link Random}, reproducing the structures of earlier versions from a seed.
+ */
 public class BasicContext implements Context {
   protected final Random random;
   protected final Function<Context, Hash> hasher;
   
+  /** Shared by the children, so they agree on the static hashes */
   protected final Map<Integer, Hash> staticHashes;
   
-  public BasicContext(Random random, Function<Context, Hash> hasher) {
+  protected BasicContext(Random random, Function<Context, Hash> hasher, Map<Integer, Hash> staticHashes) {
     this.random = random;
     this.hasher = hasher;
-    staticHashes = new HashMap<>();
+    this.staticHashes = staticHashes;
+  }
+  
+  public BasicContext(Random random, Function<Context, Hash> hasher) {
+    this(random, hasher, new ConcurrentHashMap<>());
   }
   
   public BasicContext(long seed, Function<Context, Hash> hasher) {
@@ -50,4 +58,9 @@ public class BasicContext implements Context {
   public Hash staticHash(int key) {
     return staticHashes.computeIfAbsent(key, k -> newHash());
   }
-}
\ No newline at end of file
+  
+  @Override
+  public Context split() {
+    return new BasicContext(new Random(random.nextLong()), hasher, staticHashes);
+  }
+}
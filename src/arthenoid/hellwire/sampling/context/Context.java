@@ -1,5 +1,9 @@
 package arthenoid.hellwire.sampling.context;
 
+import arthenoid.hellwire.sampling.Util;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+
 /**
  * A source of randomness and hash functions
  */
@@ -36,4 +40,60 @@ public interface Context {
    * @return A hash function
    */
   Hash staticHash(int key);
+  
+  /**
+   * Derives a child context with its own random generator seeded by this one, sharing the static hashes.
+   * A context is used by one thread at a time, other threads get their own children.
+   * @return A child context
+   */
+  Context split();
+  
+  /**
+   * Whether structures may be constructed in parallel from children of this context by {@link #fill(Context, Object[], BiFunction)}.
+   * The children consume the randomness differently than a sequential construction,
+   * so contexts reproducing the structures of earlier versions from a seed keep it sequential.
+   * @return Whether the construction may be parallel
+   */
+  default boolean parallelConstruction() {
+    return false;
+  }
+  
+  /**
+   * Fills an array by a factory, sequentially from the context itself unless it allows a parallel construction.
+   * Then each element gets its own child, split in order before any of them is created, so the result does not depend on the scheduling.
+   * @param context A context
+   * @param elements The array to fill
+   * @param factory Creates an element from a context and its position
+   */
+  static <T> void fill(Context context, T[] elements, BiFunction<Context, Integer, T> factory) {
+    if (!context.parallelConstruction()) {
+      for (int i = 0; i < elements.length; i++) elements[i] = factory.apply(context, i);
+      return;
+    }
+    Context[] children = new Context[elements.length];
+    for (int i = 0; i < elements.length; i++) children[i] = context.split();
+    IntStream.range(0, elements.length).parallel().forEach(i -> elements[i] = factory.apply(children[i], i));
+  }
+  
+  /**
+   * Derives a uniformly random real value greater than zero and at most one from a key and a counter.
+   * The same arguments always give the same value, no state is involved.
+   * @param key A random key (e.g. a hash)
+   * @param counter A counter distinguishing values derived from the same key
+   * @return A random real value
+   */
+  static double keyedReal(long key, long counter) {
+    return ((Util.mix64(key + counter * Util.GOLDEN_GAMMA) >>> 11) + 1) * 0x1.0p-53;
+  }
+  
+  /**
+   * Derives a value with the standard normal distribution from a key and a counter (by the Box–Muller transform).
+   * The same arguments always give the same value, no state is involved.
+   * @param key A random key (e.g. a hash)
+   * @param counter A counter distinguishing values derived from the same key
+   * @return A random real value
+   */
+  static double keyedGaussian(long key, long counter) {
+    return Math.sqrt(-2 * Math.log(keyedReal(key, 2 * counter))) * Math.cos(2 * Math.PI * keyedReal(key, 2 * counter + 1));
+  }
 }
\ No newline at end of file
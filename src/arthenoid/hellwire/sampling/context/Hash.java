@@ -1,11 +1,12 @@
 package arthenoid.hellwire.sampling.context;
 
 import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
 
 /**
  * A hash function
  */
-public interface Hash extends MemoryUser {
+public interface Hash extends MemoryUser, Persistent {
   /**
    * Hashes to the maximum possible range the algorithm is capable of.
    * @param x A value to hash
@@ -41,4 +42,57 @@ public interface Hash extends MemoryUser {
   default long toSign(long x) {
     return toBits(x, 1) * 2 - 1;
   }
+  
+  /**
+   * Hashes to a real value greater than zero and at most one.
+   * @param x A value to hash
+   * @return A hash
+   */
+  default double toReal(long x) {
+    return Context.keyedReal(toLong(x), 0);
+  }
+  
+  /**
+   * Hashes to a real value with the standard normal distribution.
+   * @param x A value to hash
+   * @return A hash
+   */
+  default double toGaussian(long x) {
+    return Context.keyedGaussian(toLong(x), 0);
+  }
+  
+  /**
+   * Hashes a range of values to the maximum possible range the algorithm is capable of.
+   * @param in Values to hash
+   * @param out An array for the hashes, distinct from the input (the hash of {@code in[i]} is stored at {@code out[i - from]})
+   * @param from The first position to hash (inclusive)
+   * @param to The end of the range (exclusive)
+   */
+  default void toLong(long[] in, long[] out, int from, int to) {
+    for (int i = from; i < to; i++) out[i - from] = toLong(in[i]);
+  }
+  
+  /**
+   * Hashes a range of values to the range from zero (inclusive) to the bound (exclusive).
+   * @param in Values to hash
+   * @param out An array for the hashes, distinct from the input (the hash of {@code in[i]} is stored at {@code out[i - from]})
+   * @param from The first position to hash (inclusive)
+   * @param to The end of the range (exclusive)
+   * @param bound An exclusive upper bound
+   */
+  default void toRange(long[] in, long[] out, int from, int to, long bound) {
+    for (int i = from; i < to; i++) out[i - from] = toRange(in[i], bound);
+  }
+  
+  /**
+   * Hashes a range of values to the given number of bits.
+   * @param in Values to hash
+   * @param out An array for the hashes, distinct from the input (the hash of {@code in[i]} is stored at {@code out[i - from]})
+   * @param from The first position to hash (inclusive)
+   * @param to The end of the range (exclusive)
+   * @param bits A number of bits specifying the target range
+   */
+  default void toBits(long[] in, long[] out, int from, int to, int bits) {
+    for (int i = from; i < to; i++) out[i - from] = toBits(in[i], bits);
+  }
 }
\ No newline at end of file
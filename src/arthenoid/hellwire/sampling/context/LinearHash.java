@@ -1,12 +1,16 @@
 package arthenoid.hellwire.sampling.context;
 
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+
 public class LinearHash implements Hash {
   public static final long PRIME = 1199256178700994257L;
   
   protected final long a, b;
   
   @Override
-  public int memoryUsed() {
+  public long memoryUsed() {
     return 2;
   }
   
@@ -19,8 +23,25 @@ public class LinearHash implements Hash {
     this(c.random(PRIME - 1) + 1, c.random(PRIME));
   }
   
+  public LinearHash(SnapshotReader in) throws IOException {
+    this(in.readLong(), in.readLong());
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(a);
+    out.writeLong(b);
+  }
+  
   @Override
   public long toLong(long x) {
     return Long.remainderUnsigned(a * x + b, PRIME);
   }
+  
+  @Override
+  public void toLong(long[] in, long[] out, int from, int to) {
+    long a = this.a, b = this.b;
+    for (int i = from; i < to; i++) out[i - from] = a * in[i] + b;
+    for (int i = from; i < to; i++) out[i - from] = Long.remainderUnsigned(out[i - from], PRIME);
+  }
 }
\ No newline at end of file
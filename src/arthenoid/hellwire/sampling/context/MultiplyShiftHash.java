@@ -1,10 +1,14 @@
 package arthenoid.hellwire.sampling.context;
 
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+
 public class MultiplyShiftHash implements Hash {
   protected final long a, b;
   
   @Override
-  public int memoryUsed() {
+  public long memoryUsed() {
     return 2;
   }
   
@@ -17,6 +21,16 @@ public class MultiplyShiftHash implements Hash {
     this(c.random(), c.random());
   }
   
+  public MultiplyShiftHash(SnapshotReader in) throws IOException {
+    this(in.readLong(), in.readLong());
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(a);
+    out.writeLong(b);
+  }
+  
   @Override
   public long toLong(long x) {
     return a * x + b;
@@ -31,4 +45,17 @@ public class MultiplyShiftHash implements Hash {
   public long toBits(long x, int bits) {
     return toLong(x) >>> (Long.SIZE - bits);
   }
+  
+  @Override
+  public void toLong(long[] in, long[] out, int from, int to) {
+    long a = this.a, b = this.b;
+    for (int i = from; i < to; i++) out[i - from] = a * in[i] + b;
+  }
+  
+  @Override
+  public void toBits(long[] in, long[] out, int from, int to, int bits) {
+    long a = this.a, b = this.b;
+    int shift = Long.SIZE - bits;
+    for (int i = from; i < to; i++) out[i - from] = (a * in[i] + b) >>> shift;
+  }
 }
\ No newline at end of file
@@ -1,5 +1,9 @@
 package arthenoid.hellwire.sampling.context;
 
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+
 /**
  * Algorithm adapted from https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
  */
@@ -7,7 +11,7 @@ public class MurmurHash implements Hash {
   protected final int seed;
   
   @Override
-  public int memoryUsed() {
+  public long memoryUsed() {
     return 1; //0.5
   }
   
@@ -19,6 +23,15 @@ public class MurmurHash implements Hash {
     this((int) c.random());
   }
   
+  public MurmurHash(SnapshotReader in) throws IOException {
+    this(in.readInt());
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(seed);
+  }
+  
   public static int murmur32Scramble(int k) {
     k *= 0xCC9E2D51;
     k = (k << 15) | (k >>> 17);
@@ -36,6 +49,10 @@ public class MurmurHash implements Hash {
     }
     h ^= murmur32Scramble((int) x);
     h ^= len;
+    return fmix32(h);
+  }
+  
+  public static int fmix32(int h) {
     h ^= h >>> 16;
     h *= 0x85EBCA6B;
     h ^= h >>> 13;
@@ -44,6 +61,29 @@ public class MurmurHash implements Hash {
     return h;
   }
   
+  /**
+   * Hashes a range of values to 32 bits, one pass of the algorithm over the whole range at a time.
+   * The result is the same as calling {@link #to32bits(long)} on each value, stored in the lower 32 bits.
+   * @param in Values to hash
+   * @param out An array for the hashes, distinct from the input (the hash of {@code in[i]} is stored at {@code out[i - from]})
+   * @param from The first position to hash (inclusive)
+   * @param to The end of the range (exclusive)
+   */
+  public void to32bits(long[] in, long[] out, int from, int to) {
+    for (int i = from; i < to; i++) {
+      long x = in[i];
+      int h = seed;
+      if ((x >>> 32) != 0) {
+        h ^= murmur32Scramble((int) x);
+        h = (h << 13) | (h >> 19);
+        h = h * 5 + 0xE6546B64;
+        x >>>= 32;
+      }
+      out[i - from] = (h ^ murmur32Scramble((int) x)) ^ (Long.BYTES - (Long.numberOfLeadingZeros(in[i]) >> 3));
+    }
+    for (int i = from; i < to; i++) out[i - from] = fmix32((int) out[i - from]);
+  }
+  
   @Override
   public long toLong(long x) {
     return (((long) to32bits(x)) << 32) | (((long) to32bits(~x)) & 0xFFFFFFFFl);
@@ -65,4 +105,25 @@ public class MurmurHash implements Hash {
         : to32bits(x)
     ) & mask;
   }
+  
+  @Override
+  public void toRange(long[] in, long[] out, int from, int to, long bound) {
+    if (bound > Integer.MAX_VALUE) {
+      Hash.super.toRange(in, out, from, to, bound);
+      return;
+    }
+    to32bits(in, out, from, to);
+    for (int i = from; i < to; i++) out[i - from] = Integer.remainderUnsigned((int) out[i - from], (int) bound);
+  }
+  
+  @Override
+  public void toBits(long[] in, long[] out, int from, int to, int bits) {
+    if (bits > Integer.SIZE) {
+      Hash.super.toBits(in, out, from, to, bits);
+      return;
+    }
+    long mask = -1L >>> (Long.SIZE - bits);
+    to32bits(in, out, from, to);
+    for (int i = from; i < to; i++) out[i - from] &= mask;
+  }
 }
\ No newline at end of file
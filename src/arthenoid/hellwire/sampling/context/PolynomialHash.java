@@ -0,0 +1,114 @@
+package arthenoid.hellwire.sampling.context;
+
+import arthenoid.hellwire.sampling.Util;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+
+/**
+ * A random polynomial of degree k - 1 over the field modulo {@link Util#MERSENNE_PRIME}, a k-independent family.
+ * Values are reduced modulo the prime first, so only values below it are hashed independently.
+ * The evaluation uses only multiplications, shifts and additions, no division.
+ */
+public class PolynomialHash implements Hash {
+  public static final int DEFAULT_INDEPENDENCE = 4;
+  
+  /** The coefficients, from the absolute one */
+  protected final long[] a;
+  
+  @Override
+  public long memoryUsed() {
+    return 1 + a.length;
+  }
+  
+  public PolynomialHash(long... a) {
+    if (a.length == 0) throw new IllegalArgumentException("The polynomial needs a coefficient");
+    this.a = a;
+  }
+  
+  /**
+   * Creates a random k-independent hash function.
+   * @param c A context
+   * @param k The independence (the number of coefficients)
+   */
+  public PolynomialHash(Context c, int k) {
+    this(coefficients(c, k));
+  }
+  
+  public PolynomialHash(Context c) {
+    this(c, DEFAULT_INDEPENDENCE);
+  }
+  
+  public PolynomialHash(SnapshotReader in) throws IOException {
+    this(in.readLongs());
+  }
+  
+  protected static long[] coefficients(Context c, int k) {
+    long[] a = new long[k];
+    for (int i = 0; i < k; i++) a[i] = c.random(Util.MERSENNE_PRIME);
+    return a;
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLongs(a);
+  }
+  
+  /**
+   * Reduces an unsigned value modulo the prime by a shift and an addition.
+   */
+  protected static long reduce(long x) {
+    long r = (x & Util.MERSENNE_PRIME) + (x >>> 61);
+    return r >= Util.MERSENNE_PRIME ? r - Util.MERSENNE_PRIME : r;
+  }
+  
+  /**
+   * Maps a hash below the prime to the range from zero to the bound by the high bits of their product.
+   */
+  protected static long scale(long h, long bound) {
+    return (Math.multiplyHigh(h, bound) << 3) | ((h * bound) >>> 61);
+  }
+  
+  @Override
+  public long toLong(long x) {
+    x = reduce(x);
+    long h = a[a.length - 1];
+    for (int i = a.length - 2; i >= 0; i--) h = Util.mersenneAdd(Util.mersenneMul(h, x), a[i]);
+    return h;
+  }
+  
+  @Override
+  public long toRange(long x, long bound) {
+    return scale(toLong(x), bound);
+  }
+  
+  /**
+   * Evaluates the polynomial by Horner's scheme down to the given coefficient, a coefficient at a time for the whole range,
+   * so the evaluations of different values are independent and can overlap.
+   */
+  protected void evaluate(long[] in, long[] out, int from, int to, int last) {
+    long top = a[a.length - 1];
+    for (int i = from; i < to; i++) out[i - from] = top;
+    for (int j = a.length - 2; j >= last; j--) {
+      long coefficient = a[j];
+      for (int i = from; i < to; i++) out[i - from] = Util.mersenneAdd(Util.mersenneMul(out[i - from], reduce(in[i])), coefficient);
+    }
+  }
+  
+  @Override
+  public void toLong(long[] in, long[] out, int from, int to) {
+    evaluate(in, out, from, to, 0);
+  }
+  
+  @Override
+  public void toRange(long[] in, long[] out, int from, int to, long bound) {
+    if (a.length == 1) {
+      for (int i = 0; i < to - from; i++) out[i] = scale(a[0], bound);
+      return;
+    }
+    // The last step is fused with the scaling
+    evaluate(in, out, from, to, 1);
+    long coefficient = a[0];
+    for (int i = from; i < to; i++) out[i - from] = scale(Util.mersenneAdd(Util.mersenneMul(out[i - from], reduce(in[i])), coefficient), bound);
+  }
+}
@@ -0,0 +1,102 @@
+package arthenoid.hellwire.sampling.context;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+/**
+ * A context backed by any {@link RandomGenerator}, {@link SplittableRandom} by default, allowing a parallel construction.
+ * The generator is not synchronised, so each thread uses its own child given by {@link #split()}:
+ * a splittable generator is split, a jumpable one (e.g. xoshiro) is copied and jumped ahead,
+ * any other one seeds a {@link SplittableRandom}.
+ * The static hashes are kept in a concurrent map shared by all the children.
+ */
+public class SplittableContext implements Context {
+  protected final RandomGenerator random;
+  protected final Function<Context, Hash> hasher;
+  
+  protected final ConcurrentMap<Integer, Hash> staticHashes;
+  
+  protected SplittableContext(RandomGenerator random, Function<Context, Hash> hasher, ConcurrentMap<Integer, Hash> staticHashes) {
+    this.random = random;
+    this.hasher = hasher;
+    this.staticHashes = staticHashes;
+  }
+  
+  public SplittableContext(RandomGenerator random, Function<Context, Hash> hasher) {
+    this(random, hasher, new ConcurrentHashMap<>());
+  }
+  
+  public SplittableContext(long seed, Function<Context, Hash> hasher) {
+    this(new SplittableRandom(seed), hasher);
+  }
+  
+  public SplittableContext(Function<Context, Hash> hasher) {
+    this(new SplittableRandom(), hasher);
+  }
+  
+  /**
+   * Creates a context with a generator of the given algorithm.
+   * @param algorithm The name of the algorithm, as accepted by {@link RandomGeneratorFactory#of(String)} (e.g. Xoshiro256PlusPlus or L64X128MixRandom)
+   * @param seed The seed of the generator
+   * @throws IllegalArgumentException If the algorithm is not available
+   */
+  public static SplittableContext of(String algorithm, long seed, Function<Context, Hash> hasher) {
+    return new SplittableContext(RandomGeneratorFactory.of(algorithm).create(seed), hasher);
+  }
+  
+  /**
+   * Creates a context with a randomly seeded generator of the given algorithm.
+   * @throws IllegalArgumentException If the algorithm is not available
+   */
+  public static SplittableContext of(String algorithm, Function<Context, Hash> hasher) {
+    return new SplittableContext(RandomGeneratorFactory.of(algorithm).create(), hasher);
+  }
+  
+  @Override
+  public long random() {
+    return random.nextLong();
+  }
+  
+  @Override
+  public long random(long bound) {
+    return random.nextLong(bound);
+  }
+  
+  @Override
+  public double randomReal() {
+    return random.nextDouble();
+  }
+  
+  @Override
+  public Hash newHash() {
+    return hasher.apply(this);
+  }
+  
+  @Override
+  public Hash staticHash(int key) {
+    Hash hash = staticHashes.get(key);
+    if (hash != null) return hash;
+    // Created outside of the map, so the hash may use static hashes itself
+    hash = newHash();
+    Hash previous = staticHashes.putIfAbsent(key, hash);
+    return previous == null ? hash : previous;
+  }
+  
+  @Override
+  public Context split() {
+    RandomGenerator child;
+    if (random instanceof RandomGenerator.SplittableGenerator) child = ((RandomGenerator.SplittableGenerator) random).split();
+      else if (random instanceof RandomGenerator.JumpableGenerator) child = ((RandomGenerator.JumpableGenerator) random).copyAndJump();
+      else child = new SplittableRandom(random.nextLong());
+    return new SplittableContext(child, hasher, staticHashes);
+  }
+  
+  @Override
+  public boolean parallelConstruction() {
+    return true;
+  }
+}
@@ -1,5 +1,8 @@
 package arthenoid.hellwire.sampling.context;
 
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
 
 public class TabulationHash implements Hash {
   protected final int t, k;
@@ -18,8 +21,23 @@ public class TabulationHash implements Hash {
     this(c, 16, 4);
   }
   
+  public TabulationHash(SnapshotReader in) throws IOException {
+    t = in.readInt();
+    k = in.readInt();
+    m = -1L >>> (Long.SIZE - k);
+    T = new long[t][];
+    for (int i = 0; i < t; i++) T[i] = in.readLongs();
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(t);
+    out.writeInt(k);
+    for (long[] tab : T) out.writeLongs(tab);
+  }
+  
   @Override
-  public int memoryUsed() {
+  public long memoryUsed() {
     return 3 + t + (t << k);
   }
   
@@ -32,4 +50,14 @@ public class TabulationHash implements Hash {
     }
     return h;
   }
+  
+  @Override
+  public void toLong(long[] in, long[] out, int from, int to) {
+    for (int i = from; i < to; i++) out[i - from] = 0;
+    int shift = 0;
+    for (long[] tab : T) {
+      for (int i = from; i < to; i++) out[i - from] ^= tab[(int) ((in[i] >>> shift) & m)];
+      shift += k;
+    }
+  }
 }
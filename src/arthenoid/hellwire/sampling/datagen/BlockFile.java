@@ -0,0 +1,173 @@
+package arthenoid.hellwire.sampling.datagen;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The compact (version 2) format of generated data.
+ * The file starts by {@link #MAGIC}, the version, the usual header (the name of the format, the seed,
+ * the domain size and the number of updates) and the number of updates per block.
+ * The updates follow in blocks, each having a header with the number of updates and the length of its payload in bytes.
+ * In the payload an index is stored as an unsigned varint and a frequency change as a zig-zag encoded varint.
+ * All blocks except the last one have the same number of updates, so the block of any update is known.
+ * The blocks are followed by the index of their offsets in the file, its offset, the number of blocks and {@link #MAGIC} again.
+ * The data written by older versions start directly by the name of the format.
+ */
+public class BlockFile {
+  private BlockFile() {}
+  
+  public static final int MAGIC = 0x48574744, VERSION = 2;
+  public static final int DEFAULT_BLOCK_UPDATES = 1 << 16, MAX_BLOCK_UPDATES = 1 << 20;
+  /** The size of a block header in bytes */
+  public static final int BLOCK_HEADER_SIZE = 2 * Integer.BYTES;
+  /** The size of the trailer after the block index in bytes */
+  public static final int TRAILER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+  /** The size of the output buffer in bytes */
+  public static final int BUFFER_SIZE = 1 << 20;
+  /** The maximum size of an encoded update in bytes */
+  public static final int MAX_UPDATE_SIZE = 20;
+  
+  public static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+  
+  public static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  public static void putVarLong(ByteBuffer buffer, long value) {
+    for (; (value & ~0x7FL) != 0; value >>>= 7) buffer.put((byte) (value | 0x80));
+    buffer.put((byte) value);
+  }
+  
+  public static long getVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    for (; (b = buffer.get()) < 0; shift += 7) value |= (long) (b & 0x7F) << shift;
+    return value | (long) b << shift;
+  }
+  
+  /**
+   * Decodes the following updates of a block.
+   * @param block The payload of a block positioned at an update
+   * @param indices The array for the indices
+   * @param frequencyChanges The array for the frequency changes
+   * @param from The first position to fill (inclusive)
+   * @param to The last position to fill (exclusive)
+   */
+  public static void decode(ByteBuffer block, long[] indices, long[] frequencyChanges, int from, int to) {
+    for (int i = from; i < to; i++) {
+      indices[i] = getVarLong(block);
+      frequencyChanges[i] = unZigZag(getVarLong(block));
+    }
+  }
+  
+  /**
+   * Skips the following updates of a block.
+   */
+  public static void skip(ByteBuffer block, int updates) {
+    for (int i = 0; i < 2 * updates; i++) while (block.get() < 0);
+  }
+  
+  /**
+   * Reads the block index from the end of a file.
+   * @param channel The file
+   * @param blocks The expected number of blocks
+   * @return The offsets of the blocks followed by the offset of the block index (the end of the last block)
+   */
+  public static long[] readIndex(FileChannel channel, long blocks) throws IOException {
+    long size = channel.size();
+    if (size < TRAILER_SIZE) throw new EOFException("Data file is truncated");
+    ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+    channel.read(trailer, size - TRAILER_SIZE);
+    long indexOffset = trailer.getLong(0);
+    if (trailer.getInt(Long.BYTES + Integer.BYTES) != MAGIC) throw new EOFException("Data file is truncated");
+    if (trailer.getInt(Long.BYTES) != blocks || indexOffset + blocks * Long.BYTES != size - TRAILER_SIZE) throw new IOException("Invalid block index");
+    ByteBuffer index = ByteBuffer.allocate((int) blocks * Long.BYTES);
+    while (index.hasRemaining()) if (channel.read(index, indexOffset + index.position()) < 0) throw new EOFException("Data file is truncated");
+    long[] offsets = new long[(int) blocks + 1];
+    index.flip().asLongBuffer().get(offsets, 0, (int) blocks);
+    offsets[(int) blocks] = indexOffset;
+    return offsets;
+  }
+  
+  /**
+   * The number of blocks needed for the updates.
+   */
+  public static long blocks(long updates, int blockUpdates) {
+    return (updates + blockUpdates - 1) / blockUpdates;
+  }
+  
+  /**
+   * Writes the updates in blocks, the block index is written when closed.
+   */
+  public static class Writer implements Format.UpdateConsumer, Closeable {
+    protected final DataOutputStream out;
+    protected final int blockUpdates;
+    protected final ByteBuffer block;
+    protected int count = 0, blocks = 0;
+    protected long position;
+    protected long[] offsets = new long[16];
+    
+    /**
+     * Writes the header.
+     * @param out The output, closed with the writer
+     * @param blockUpdates The number of updates in a block
+     */
+    public Writer(OutputStream out, String name, long seed, long n, long updates, int blockUpdates) throws IOException {
+      if (blockUpdates <= 0 || blockUpdates > MAX_BLOCK_UPDATES) throw new IllegalArgumentException("The number of updates in a block must be between 1 and " + MAX_BLOCK_UPDATES);
+      this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+      this.blockUpdates = blockUpdates;
+      block = ByteBuffer.allocate(blockUpdates * MAX_UPDATE_SIZE);
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(VERSION);
+      this.out.writeUTF(name);
+      this.out.writeLong(seed);
+      this.out.writeLong(n);
+      this.out.writeLong(updates);
+      this.out.writeInt(blockUpdates);
+      position = this.out.size();
+    }
+    
+    @Override
+    public void update(long index, long frequencyChange) throws IOException {
+      putVarLong(block, index);
+      putVarLong(block, zigZag(frequencyChange));
+      if (++count == blockUpdates) flushBlock();
+    }
+    
+    protected void flushBlock() throws IOException {
+      if (count == 0) return;
+      if (blocks == offsets.length) offsets = Arrays.copyOf(offsets, 2 * blocks);
+      offsets[blocks++] = position;
+      out.writeInt(count);
+      out.writeInt(block.position());
+      out.write(block.array(), 0, block.position());
+      position += BLOCK_HEADER_SIZE + block.position();
+      block.clear();
+      count = 0;
+    }
+    
+    /**
+     * Writes the last block and the block index.
+     */
+    @Override
+    public void close() throws IOException {
+      try (out) {
+        flushBlock();
+        for (int i = 0; i < blocks; i++) out.writeLong(offsets[i]);
+        out.writeLong(position);
+        out.writeInt(blocks);
+        out.writeInt(MAGIC);
+      }
+    }
+  }
+}
@@ -1,10 +1,24 @@
 package arthenoid.hellwire.sampling.datagen;
 
+import arthenoid.hellwire.sampling.Util;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.random.RandomGenerator;
 
+/**
+ * A generator of test data.
+ * The updates are generated in blocks of {@link #BLOCK_UPDATES}, each by its own random generator derived from the seed,
+ * so the blocks can be generated in parallel and the data depend only on the parameters.
+ */
 public abstract class Format {
+  public static final int BLOCK_UPDATES = 1 << 16;
+  
   public final long seed, n, updates;
   
   public Format(long seed, long n, long updates) {
@@ -29,7 +43,88 @@ public abstract class Format {
     void update(long index, long frequencyChange) throws IOException;
   }
   
-  public abstract void generate(UpdateConsumer out) throws IOException;
+  /**
+   * Generates a block of updates.
+   * @param from The number of the first update (inclusive)
+   * @param to The number of the last update (exclusive)
+   * @param r The random generator of the block
+   * @param out The consumer of the updates
+   */
+  protected abstract void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException;
+  
+  public long blocks() {
+    return (updates + BLOCK_UPDATES - 1) / BLOCK_UPDATES;
+  }
+  
+  /**
+   * Creates the random generator of a block.
+   */
+  protected RandomGenerator random(long block) {
+    return new SplittableRandom(Util.mix64(seed + (block + 1) * Util.GOLDEN_GAMMA));
+  }
+  
+  protected void generate(long block, UpdateConsumer out) throws IOException {
+    generate(block * BLOCK_UPDATES, Math.min(updates, (block + 1) * BLOCK_UPDATES), random(block), out);
+  }
+  
+  public void generate(UpdateConsumer out) throws IOException {
+    for (long block = 0; block < blocks(); block++) generate(block, out);
+  }
+  
+  /**
+   * The updates of a generated block.
+   */
+  protected static class Block implements UpdateConsumer {
+    protected final long[] indices = new long[BLOCK_UPDATES], frequencyChanges = new long[BLOCK_UPDATES];
+    protected int count = 0;
+    
+    @Override
+    public void update(long index, long frequencyChange) {
+      indices[count] = index;
+      frequencyChanges[count++] = frequencyChange;
+    }
+    
+    public void writeTo(UpdateConsumer out) throws IOException {
+      for (int i = 0; i < count; i++) out.update(indices[i], frequencyChanges[i]);
+    }
+  }
+  
+  /**
+   * Generates the blocks in parallel, a few blocks ahead of the consumer, which receives the updates in order.
+   * @param out The consumer of the updates
+   * @param threads The number of threads generating the blocks
+   */
+  public void generate(UpdateConsumer out, int threads) throws IOException {
+    if (threads <= 1) {
+      generate(out);
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      ArrayDeque<Future<Block>> generated = new ArrayDeque<>();
+      long blocks = blocks(), next = 0;
+      while (next < blocks || !generated.isEmpty()) {
+        while (next < blocks && generated.size() < 2 * threads) {
+          long block = next++;
+          generated.add(pool.submit(() -> {
+            Block b = new Block();
+            generate(block, b);
+            return b;
+          }));
+        }
+        generated.remove().get().writeTo(out);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while generating", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IllegalStateException("Generation failed", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
   
   public static class Expectation {
     public final double frequency, probability;
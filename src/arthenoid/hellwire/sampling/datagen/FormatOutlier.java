@@ -4,31 +4,33 @@ import arthenoid.hellwire.sampling.Util;
 import java.io.IOException;
 import java.util.Random;
 import java.util.function.ToLongFunction;
+import java.util.random.RandomGenerator;
 
 public class FormatOutlier extends Format {
-  protected final long outlier;
-  protected final ToLongFunction<Random> outlierUpdate;
+  protected final long outlier, outlierPosition;
+  protected final ToLongFunction<RandomGenerator> outlierUpdate;
   
   public FormatOutlier(long seed, long n, long updates) {
     super(seed, n, updates);
-    outlier = Util.randomLong(new Random(~seed), n);
+    Random r = new Random(~seed);
+    outlier = Util.randomLong(r, n);
+    outlierPosition = updates > n || updates == 0 ? -1 : Util.randomLong(r, updates);
     outlierUpdate = Util.fractionalRandomLong(2 * (n - 1), updates - n);
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    Random r = new Random(seed);
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
     if (updates > n) {
-      for (long i = 0; i < updates; i++) {
+      for (long i = from; i < to; i++) {
         long index = Util.randomLong(r, updates);
         if (index < n) out.update(index, 1);
           else out.update(outlier, outlierUpdate.applyAsLong(r));
       }
     } else {
-      long outlierIndex = Util.randomLong(r, updates);
-      for (long i = 0; i < outlierIndex; i++) out.update(Util.randomLong(r, n), 1);
-      out.update(outlier, n);
-      for (long i = outlierIndex + 1; i < updates; i++) out.update(Util.randomLong(r, n), 1);
+      for (long i = from; i < to; i++) {
+        if (i == outlierPosition) out.update(outlier, n);
+          else out.update(Util.randomLong(r, n), 1);
+      }
     }
   }
   
@@ -4,7 +4,7 @@ import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Hash;
 import arthenoid.hellwire.sampling.context.MurmurHash;
 import java.io.IOException;
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class FormatPowerLaw extends Format {
   protected final Hash rh;
@@ -19,9 +19,8 @@ public class FormatPowerLaw extends Format {
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    Random r = new Random(seed);
-    for (long i = 0; i < updates; i++) out.update(rh.toRange((long) (-invλ * Math.log(1 - r.nextDouble())), n), Util.randomLong(r, sqrtN));
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
+    for (long i = from; i < to; i++) out.update(rh.toRange((long) (-invλ * Math.log(1 - r.nextDouble())), n), Util.randomLong(r, sqrtN));
   }
   
   @Override
@@ -2,7 +2,7 @@ package arthenoid.hellwire.sampling.datagen;
 
 import arthenoid.hellwire.sampling.Util;
 import java.io.IOException;
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class FormatUniform extends Format {
   protected final long sqrtN;
@@ -13,9 +13,8 @@ public class FormatUniform extends Format {
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    Random r = new Random(seed);
-    for (long i = 0; i < updates; i++) out.update(Util.randomLong(r, n), Util.randomLong(r, sqrtN));
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
+    for (long i = from; i < to; i++) out.update(Util.randomLong(r, n), Util.randomLong(r, sqrtN));
   }
   
   @Override
@@ -4,13 +4,13 @@ import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Hash;
 import arthenoid.hellwire.sampling.context.MurmurHash;
 import java.io.IOException;
-import java.util.Random;
 import java.util.function.ToLongFunction;
+import java.util.random.RandomGenerator;
 
 public class FormatUnitsAndRoots extends Format {
   protected final Hash rh;
   protected final long sqrtN, rootSlots;
-  protected final ToLongFunction<Random> rootUpdate;
+  protected final ToLongFunction<RandomGenerator> rootUpdate;
   
   public FormatUnitsAndRoots(long seed, long n, long updates) {
     super(seed, n, updates);
@@ -21,9 +21,8 @@ public class FormatUnitsAndRoots extends Format {
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    Random r = new Random(seed);
-    for (long i = 0; i < updates; i++) {
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
+    for (long i = from; i < to; i++) {
       if (Util.randomLong(r, updates) >= rootSlots) out.update(Util.randomLong(r, n), 1);
         else out.update(rh.toRange(Util.randomLong(r, sqrtN), n), rootUpdate.applyAsLong(r));
     }
@@ -3,6 +3,7 @@ package arthenoid.hellwire.sampling.datagen;
 import arthenoid.hellwire.sampling.Util;
 import java.io.IOException;
 import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class SUFormatOutlier extends SUFormat {
   protected final long outlier;
@@ -17,8 +18,8 @@ public class SUFormatOutlier extends SUFormat {
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    for (long i = 0; i < n; i++) out.update(i, targetFrequency(i));
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
+    for (long i = from; i < to; i++) out.update(i, targetFrequency(i));
   }
   
   @Override
@@ -1,6 +1,7 @@
 package arthenoid.hellwire.sampling.datagen;
 
 import java.io.IOException;
+import java.util.random.RandomGenerator;
 
 public class SUFormatUnits extends SUFormat {
   public SUFormatUnits(long seed, long n) {
@@ -8,8 +9,8 @@ public class SUFormatUnits extends SUFormat {
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    for (long i = 0; i < n; i++) out.update(i, 1);
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
+    for (long i = from; i < to; i++) out.update(i, 1);
   }
   
   @Override
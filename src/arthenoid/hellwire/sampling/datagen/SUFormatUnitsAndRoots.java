@@ -4,6 +4,7 @@ import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Hash;
 import arthenoid.hellwire.sampling.context.MurmurHash;
 import java.io.IOException;
+import java.util.random.RandomGenerator;
 
 public class SUFormatUnitsAndRoots extends SUFormat {
   protected final long sqrtN;
@@ -20,8 +21,8 @@ public class SUFormatUnitsAndRoots extends SUFormat {
   }
   
   @Override
-  public void generate(UpdateConsumer out) throws IOException {
-    for (long i = 0; i < n; i++) out.update(i, targetFrequency(i));
+  protected void generate(long from, long to, RandomGenerator r, UpdateConsumer out) throws IOException {
+    for (long i = from; i < to; i++) out.update(i, targetFrequency(i));
   }
   
   @Override
@@ -0,0 +1,83 @@
+package arthenoid.hellwire.sampling.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events of the samplers.
+ * The update and query events are emitted by {@link MeteredSampler}, the metrics event periodically while {@link Metrics} are enabled.
+ */
+public class Events {
+  private Events() {}
+  
+  public static final String CATEGORY = "Hellwire Sampling";
+  
+  @Name("arthenoid.hellwire.sampling.Update")
+  @Label("Sampler Update")
+  @Description("A batch of updates processed by a sampler")
+  @Category(CATEGORY)
+  public static class Update extends Event {
+    @Label("Sampler")
+    public String sampler;
+    
+    @Label("Updates")
+    public int updates;
+  }
+  
+  @Name("arthenoid.hellwire.sampling.Query")
+  @Label("Sampler Query")
+  @Description("A query of a sampler or of all its subsamplers")
+  @Category(CATEGORY)
+  public static class Query extends Event {
+    @Label("Sampler")
+    public String sampler;
+    
+    @Label("Samples")
+    public int samples;
+    
+    @Label("Failed")
+    @Description("The number of failed subsamplers, or one if a query of the whole sampler failed")
+    public int failed;
+  }
+  
+  @Name("arthenoid.hellwire.sampling.Metrics")
+  @Label("Sampling Metrics")
+  @Description("The totals collected by the metrics")
+  @Category(CATEGORY)
+  @Period("1 s")
+  public static class Totals extends Event {
+    @Label("Updates")
+    public long updates;
+    
+    @Label("Update Time")
+    @Timespan
+    public long updateTime;
+    
+    @Label("Queries")
+    public long queries;
+    
+    @Label("Query Latency (Median)")
+    @Timespan
+    public long queryLatencyMedian;
+    
+    @Label("Query Latency (99th Percentile)")
+    @Timespan
+    public long queryLatency99;
+    
+    @Label("Failed Subsampler Queries")
+    public long failedSubsamplers;
+    
+    @Label("Subsampler Resets")
+    public long resets;
+    
+    @Label("Bytes Parsed")
+    @DataAmount
+    public long bytesParsed;
+  }
+}
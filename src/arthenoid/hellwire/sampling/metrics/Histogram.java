@@ -0,0 +1,63 @@
+package arthenoid.hellwire.sampling.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with a bucket for each power of two, safe to record to from any thread.
+ * The buckets are striped counters, so concurrent recording does not contend on a single variable.
+ */
+public class Histogram {
+  protected final LongAdder[] buckets = new LongAdder[Long.SIZE];
+  protected final LongAdder total = new LongAdder();
+  protected final LongAccumulator max = new LongAccumulator(Math::max, 0);
+  
+  public Histogram() {
+    for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+  }
+  
+  /**
+   * The bucket of a value, values from 2<sup>b - 1</sup> to 2<sup>b</sup> - 1 fall into the bucket b.
+   */
+  protected static int bucket(long nanos) {
+    return Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos));
+  }
+  
+  public void record(long nanos) {
+    buckets[Math.min(bucket(nanos), buckets.length - 1)].increment();
+    total.add(nanos);
+    max.accumulate(nanos);
+  }
+  
+  public long count() {
+    long count = 0;
+    for (LongAdder bucket : buckets) count += bucket.sum();
+    return count;
+  }
+  
+  /**
+   * The sum of all recorded durations in nanoseconds.
+   */
+  public long total() {
+    return total.sum();
+  }
+  
+  public long max() {
+    return max.get();
+  }
+  
+  /**
+   * Estimates a quantile by the upper bound of the bucket it falls into (at most the maximum).
+   * @param q The quantile, between zero and one
+   * @return The estimate in nanoseconds, zero if nothing was recorded
+   */
+  public long quantile(double q) {
+    long[] counts = new long[buckets.length];
+    long count = 0;
+    for (int i = 0; i < counts.length; i++) count += counts[i] = buckets[i].sum();
+    if (count == 0) return 0;
+    long rank = (long) Math.ceil(q * count);
+    for (int i = 0; i < counts.length; i++) if ((rank -= counts[i]) <= 0) return i == 0 ? 0 : Math.min((1L << i) - 1, max());
+    return max();
+  }
+}
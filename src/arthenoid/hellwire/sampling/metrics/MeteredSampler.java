@@ -0,0 +1,137 @@
+package arthenoid.hellwire.sampling.metrics;
+
+import arthenoid.hellwire.sampling.ResultSink;
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.samplers.Sampler;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+
+/**
+ * Records the updates and queries of a sampler into the {@link Metrics} and emits them as flight recorder {@link Events}.
+ * Only batches of updates are timed, single updates are just counted.
+ */
+public class MeteredSampler implements Sampler {
+  protected final Sampler sampler;
+  protected final String name;
+  
+  @Override
+  public double p() {
+    return sampler.p();
+  }
+  
+  @Override
+  public long memoryUsed() {
+    return sampler.memoryUsed();
+  }
+  
+  public MeteredSampler(Sampler sampler) {
+    this.sampler = sampler;
+    name = sampler.getClass().getSimpleName();
+  }
+  
+  public MeteredSampler(Context context, SnapshotReader in) throws IOException {
+    this(in.readSampler(context));
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeObject(sampler);
+  }
+  
+  /**
+   * The metered sampler.
+   */
+  public Sampler sampler() {
+    return sampler;
+  }
+  
+  @Override
+  public void update(long index, long frequencyChange) {
+    sampler.update(index, frequencyChange);
+    Metrics.updates.increment();
+  }
+  
+  @Override
+  public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+    Events.Update event = new Events.Update();
+    event.begin();
+    long t = System.nanoTime();
+    sampler.update(indices, frequencyChanges, from, to);
+    Metrics.recordUpdates(to - from, System.nanoTime() - t);
+    if (event.shouldCommit()) {
+      event.sampler = name;
+      event.updates = to - from;
+      event.commit();
+    }
+  }
+  
+  /**
+   * Passes the results to another sink, counting them.
+   */
+  protected static class CountingSink implements ResultSink {
+    protected final ResultSink sink;
+    protected int samples = 0, failed = 0;
+    
+    public CountingSink(ResultSink sink) {
+      this.sink = sink;
+    }
+    
+    @Override
+    public void accept(long index, double frequency) {
+      samples++;
+      sink.accept(index, frequency);
+    }
+    
+    @Override
+    public void failed() {
+      failed++;
+      sink.failed();
+    }
+  }
+  
+  protected void recordQuery(Events.Query event, long t, int samples, int failed) {
+    Metrics.recordQuery(System.nanoTime() - t, failed);
+    if (event.shouldCommit()) {
+      event.sampler = name;
+      event.samples = samples;
+      event.failed = failed;
+      event.commit();
+    }
+  }
+  
+  @Override
+  public boolean query(ResultSink sink) {
+    Events.Query event = new Events.Query();
+    event.begin();
+    long t = System.nanoTime();
+    boolean success = sampler.query(sink);
+    recordQuery(event, t, success ? 1 : 0, success ? 0 : 1);
+    return success;
+  }
+  
+  @Override
+  public void queryAll(ResultSink sink) {
+    Events.Query event = new Events.Query();
+    event.begin();
+    long t = System.nanoTime();
+    CountingSink counting = new CountingSink(sink);
+    sampler.queryAll(counting);
+    recordQuery(event, t, counting.samples, counting.failed);
+  }
+  
+  @Override
+  public Sampler replica() {
+    return new MeteredSampler(sampler.replica());
+  }
+  
+  @Override
+  public void clear() {
+    sampler.clear();
+  }
+  
+  @Override
+  public void merge(Sampler other) {
+    sampler.merge(other instanceof MeteredSampler ? ((MeteredSampler) other).sampler : other);
+  }
+}
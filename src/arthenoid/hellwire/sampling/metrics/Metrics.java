@@ -0,0 +1,206 @@
+package arthenoid.hellwire.sampling.metrics;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Process-wide counters and timers of the hot paths, collected only after {@link #enable()}.
+ * The counters are striped ({@link LongAdder}), so threads updating them do not contend.
+ * While disabled, the instrumented code only reads a flag.
+ * The metrics are exposed by JMX (see {@link MetricsMXBean}) and by a periodic Java Flight Recorder event.
+ */
+public class Metrics implements MetricsMXBean {
+  public static final String OBJECT_NAME = "arthenoid.hellwire.sampling:type=Metrics";
+  
+  protected static volatile boolean enabled = false;
+  protected static long enabledAt;
+  
+  /** The number of updates processed by samplers */
+  public static final LongAdder updates = new LongAdder();
+  /** The time spent by samplers processing batches of updates in nanoseconds */
+  public static final LongAdder updateTime = new LongAdder();
+  /** The latency of queries (a query of a sampler or of all its subsamplers) */
+  public static final Histogram queryLatency = new Histogram();
+  /** The number of failed queries, of each subsampler when all are queried, otherwise of the whole sampler */
+  public static final LongAdder failedSubsamplers = new LongAdder();
+  /** The number of resets of the selected index of a subsampler of {@link arthenoid.hellwire.sampling.samplers.TrulyPerfectL2Sampler} */
+  public static final LongAdder resets = new LongAdder();
+  /** The number of bytes parsed by each kind of input */
+  protected static final Map<String, LongAdder> bytesParsed = new ConcurrentHashMap<>();
+  
+  public static boolean enabled() {
+    return enabled;
+  }
+  
+  /**
+   * Starts collecting the metrics, registers the MBean and the periodic flight recorder event.
+   * @throws IllegalStateException If the MBean cannot be registered
+   */
+  public static synchronized void enable() {
+    if (enabled) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      throw new IllegalStateException("Metrics cannot be registered", e);
+    }
+    FlightRecorder.addPeriodicEvent(Events.Totals.class, Metrics::emitTotals);
+    enabledAt = System.nanoTime();
+    enabled = true;
+  }
+  
+  public static void recordUpdates(int count, long nanos) {
+    updates.add(count);
+    updateTime.add(nanos);
+  }
+  
+  public static void recordQuery(long nanos, int failed) {
+    queryLatency.record(nanos);
+    if (failed > 0) failedSubsamplers.add(failed);
+  }
+  
+  public static void recordReset() {
+    if (enabled) resets.increment();
+  }
+  
+  /**
+   * Counts parsed bytes.
+   * @param source The kind of input
+   * @param bytes The number of bytes
+   */
+  public static void recordBytes(String source, long bytes) {
+    if (enabled) bytesParsed.computeIfAbsent(source, s -> new LongAdder()).add(bytes);
+  }
+  
+  protected static long totalBytesParsed() {
+    long total = 0;
+    for (LongAdder bytes : bytesParsed.values()) total += bytes.sum();
+    return total;
+  }
+  
+  protected static void emitTotals() {
+    Events.Totals event = new Events.Totals();
+    event.updates = updates.sum();
+    event.updateTime = updateTime.sum();
+    event.queries = queryLatency.count();
+    event.queryLatencyMedian = queryLatency.quantile(0.5);
+    event.queryLatency99 = queryLatency.quantile(0.99);
+    event.failedSubsamplers = failedSubsamplers.sum();
+    event.resets = resets.sum();
+    event.bytesParsed = totalBytesParsed();
+    event.commit();
+  }
+  
+  protected static String formatNanos(long nanos) {
+    if (nanos < 1000) return nanos + "ns";
+    if (nanos < 1000000) return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+    if (nanos < 1000000000) return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+  }
+  
+  /**
+   * Prints the current values on a line.
+   */
+  public static void print(PrintStream out) {
+    Metrics metrics = new Metrics();
+    StringBuilder line = new StringBuilder(String.format(
+      Locale.ROOT,
+      "[Metrics after %s: %d updates (%.0f/s, %s updating), %d queries (median %s, 99%% %s, total %s), %d failed subsampler queries, %d resets",
+      formatNanos(System.nanoTime() - enabledAt),
+      metrics.getUpdates(),
+      metrics.getUpdatesPerSecond(),
+      formatNanos(metrics.getUpdateTime()),
+      metrics.getQueries(),
+      formatNanos(metrics.getQueryLatencyMedian()),
+      formatNanos(metrics.getQueryLatency99()),
+      formatNanos(metrics.getQueryTime()),
+      metrics.getFailedSubsamplerQueries(),
+      metrics.getSubsamplerResets()
+    ));
+    metrics.getBytesParsed().forEach((source, bytes) -> line.append(String.format(Locale.ROOT, ", %d bytes parsed by %s", bytes, source)));
+    out.println(line.append(']'));
+  }
+  
+  /**
+   * Enables the metrics and prints them periodically from a daemon thread.
+   * @param out The output
+   * @param seconds The period
+   * @return The scheduler, to be shut down when the metrics are no longer printed
+   */
+  public static ScheduledExecutorService printEvery(PrintStream out, double seconds) {
+    enable();
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "metrics");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = Math.max(1, (long) (seconds * 1e9));
+    scheduler.scheduleAtFixedRate(() -> print(out), period, period, TimeUnit.NANOSECONDS);
+    return scheduler;
+  }
+  
+  @Override
+  public long getUpdates() {
+    return updates.sum();
+  }
+  
+  @Override
+  public long getUpdateTime() {
+    return updateTime.sum();
+  }
+  
+  /**
+   * The number of updates per second of the time since enabled.
+   */
+  @Override
+  public double getUpdatesPerSecond() {
+    return enabled ? updates.sum() * 1e9 / Math.max(1, System.nanoTime() - enabledAt) : 0;
+  }
+  
+  @Override
+  public long getQueries() {
+    return queryLatency.count();
+  }
+  
+  @Override
+  public long getQueryTime() {
+    return queryLatency.total();
+  }
+  
+  @Override
+  public long getQueryLatencyMedian() {
+    return queryLatency.quantile(0.5);
+  }
+  
+  @Override
+  public long getQueryLatency99() {
+    return queryLatency.quantile(0.99);
+  }
+  
+  @Override
+  public long getFailedSubsamplerQueries() {
+    return failedSubsamplers.sum();
+  }
+  
+  @Override
+  public long getSubsamplerResets() {
+    return resets.sum();
+  }
+  
+  @Override
+  public Map<String, Long> getBytesParsed() {
+    Map<String, Long> bytes = new TreeMap<>();
+    bytesParsed.forEach((source, b) -> bytes.put(source, b.sum()));
+    return bytes;
+  }
+}
@@ -0,0 +1,20 @@
+package arthenoid.hellwire.sampling.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics exposed by JMX, registered as {@value Metrics#OBJECT_NAME}.
+ * The durations are in nanoseconds.
+ */
+public interface MetricsMXBean {
+  long getUpdates();
+  long getUpdateTime();
+  double getUpdatesPerSecond();
+  long getQueries();
+  long getQueryTime();
+  long getQueryLatencyMedian();
+  long getQueryLatency99();
+  long getFailedSubsamplerQueries();
+  long getSubsamplerResets();
+  Map<String, Long> getBytesParsed();
+}
@@ -1,11 +1,14 @@
 package arthenoid.hellwire.sampling.samplers;
 
 import arthenoid.hellwire.sampling.MemoryUser;
-import arthenoid.hellwire.sampling.Result;
+import arthenoid.hellwire.sampling.ResultSink;
 import arthenoid.hellwire.sampling.context.Context;
 import arthenoid.hellwire.sampling.context.Hash;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
 import arthenoid.hellwire.sampling.structures.SparseRecoverer;
-import java.util.stream.Stream;
+import arthenoid.hellwire.sampling.structures.SparseRecovererBank;
+import java.io.IOException;
 
 public class DistinctSampler implements Sampler {
   @Override
@@ -14,76 +17,267 @@ public class DistinctSampler implements Sampler {
   }
   
   protected final long n;
-  protected final int log2n;
+  protected final int log2n, fingerprints;
   protected final Subsampler[] subsamplers;
+  protected final SparseRecovererBank recoverers;
+  protected final long[] hashBuffer;
   
   @Override
-  public int memoryUsed() {
-    int m = 3 + subsamplers.length;
+  public long memoryUsed() {
+    long m = 7 + subsamplers.length + HASH_BATCH + recoverers.memoryUsed();
     for (Subsampler subsampler : subsamplers) m += subsampler.memoryUsed();
     return m;
   }
   
+  /**
+   * A subsampler, its recoverers are stored in consecutive slots of the recoverer bank,
+   * {@link #fingerprints} for each level, each evaluating the fingerprint in a different point.
+   */
   protected class Subsampler implements MemoryUser {
     protected final Hash h;
-    protected final SparseRecoverer[] recoverers;
+    protected final int base;
+    /** Powers of the evaluation points shared by the levels, {@link #log2n} for each fingerprint, or {@code null} if each recoverer has its own */
+    protected final long[] powers;
     
     @Override
-    public int memoryUsed() {
-      int m = 3 + log2n + h.memoryUsed();
-      for (SparseRecoverer sparseRecoverer : recoverers) m += sparseRecoverer.memoryUsed();
-      return m;
+    public long memoryUsed() {
+      return 3 + h.memoryUsed() + (powers == null ? 0 : 1 + powers.length);
     }
     
-    public Subsampler(Context context, long prime) {
+    public Subsampler(Context context, int base, boolean sharedEvaluationPoint) {
       h = context.newHash();
-      recoverers = new SparseRecoverer[log2n + 2];
-      for (int ℓ = 0; ℓ <= log2n + 1; ℓ++) recoverers[ℓ] = new SparseRecoverer(context, n, prime);
+      this.base = base;
+      if (sharedEvaluationPoint) {
+        powers = new long[fingerprints * log2n];
+        for (int f = 0; f < fingerprints; f++) {
+          long r = SparseRecoverer.randomPoint(context);
+          SparseRecoverer.powers(r, powers, f * log2n, log2n);
+          for (int ℓ = 0; ℓ <= log2n + 1; ℓ++) recoverers.setPoint(slot(ℓ, f), r);
+        }
+      } else {
+        powers = null;
+        for (int ℓ = 0; ℓ <= log2n + 1; ℓ++) for (int f = 0; f < fingerprints; f++) recoverers.setPoint(slot(ℓ, f), SparseRecoverer.randomPoint(context));
+      }
+    }
+    
+    /**
+     * Creates a subsampler of a replica, sharing the hash and the evaluation points.
+     */
+    public Subsampler(Subsampler other) {
+      h = other.h;
+      base = other.base;
+      powers = other.powers;
+    }
+    
+    public Subsampler(SnapshotReader in) throws IOException {
+      h = in.readObject(Hash.class);
+      base = in.readInt();
+      powers = in.readBoolean() ? in.readLongs() : null;
+    }
+    
+    public void write(SnapshotWriter out) throws IOException {
+      out.writeObject(h);
+      out.writeInt(base);
+      out.writeBoolean(powers != null);
+      if (powers != null) out.writeLongs(powers);
+    }
+    
+    /**
+     * The slot of the recoverer of a level evaluating the given fingerprint.
+     */
+    protected int slot(int level, int fingerprint) {
+      return base + level * fingerprints + fingerprint;
+    }
+    
+    protected void update(long index, long frequencyChange, long hash) {
+      for (int f = 0; f < fingerprints; f++) {
+        int slot = base + f;
+        long levels = hash;
+        if (powers == null) {
+          recoverers.update(slot, index, frequencyChange);
+          for (; (levels & 1) > 0; levels >>>= 1) recoverers.update(slot += fingerprints, index, frequencyChange);
+        } else {
+          long term = SparseRecoverer.term(frequencyChange, SparseRecoverer.power(powers, f * log2n, index));
+          recoverers.update(slot, index, frequencyChange, term);
+          for (; (levels & 1) > 0; levels >>>= 1) recoverers.update(slot += fingerprints, index, frequencyChange, term);
+        }
+      }
     }
     
     public void update(long index, long frequencyChange) {
-      recoverers[0].update(index, frequencyChange);
-      int i = 1;
-      for (long hash = h.toBits(index, log2n + 1); (hash & 1) > 0; hash >>>= 1) recoverers[i++].update(index, frequencyChange);
+      update(index, frequencyChange, h.toBits(index, log2n + 1));
+    }
+    
+    public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+      for (int batchFrom = from; batchFrom < to; batchFrom += HASH_BATCH) {
+        int batchTo = Math.min(batchFrom + HASH_BATCH, to);
+        h.toBits(indices, hashBuffer, batchFrom, batchTo, log2n + 1);
+        for (int j = batchFrom; j < batchTo; j++) update(indices[j], frequencyChanges[j], hashBuffer[j - batchFrom]);
+      }
     }
     
-    public Result query() {
-      for (int i = log2n + 1; i >= 0; i--) {
-        SparseRecoverer.IntegerResult res = recoverers[i].query();
-        if (res == null) break;
-        if (res.frequency != 0) {
-          if (i != 0 && ((h.toBits(res.index, log2n + 1) + 1) & ((1 << i) - 1)) != 0) break;
-          return new Result(res.index, res.frequency);
+    public boolean query(ResultSink sink) {
+      levels: for (int i = log2n + 1; i >= 0; i--) {
+        long index = recoverers.recover(slot(i, 0));
+        if (index == SparseRecoverer.FAILED) break;
+        // All the fingerprints have to confirm the index
+        for (int f = 1; f < fingerprints; f++) if (recoverers.recover(slot(i, f)) != index) break levels;
+        if (index != SparseRecoverer.EMPTY) {
+          if (i != 0 && ((h.toBits(index, log2n + 1) + 1) & ((1 << i) - 1)) != 0) break;
+          sink.accept(index, recoverers.frequency(slot(i, 0)));
+          return true;
         }
       }
-      return null;
+      return false;
     }
   }
   
-  public DistinctSampler(Context context, long n, double relativeError, double absoluteError, double failureProbability) {
+  /** The number of indices hashed at once in batch updates */
+  protected static final int HASH_BATCH = 256;
+  
+  /**
+   * The memory used by a sampler with the given parameters and shared evaluation points, see {@link MemoryPlanner}.
+   * @param hashMemory The memory used by a hash function
+   */
+  public static long memoryFor(long n, double relativeError, double absoluteError, double failureProbability, long hashMemory) {
+    int log2n = Long.SIZE - Long.numberOfLeadingZeros(n - 1), fingerprints = SparseRecoverer.fingerprints(n, absoluteError / 7.0);
+    long subsamplers = (int) (8 * Math.log(1 / failureProbability));
+    return 7 + HASH_BATCH + SparseRecovererBank.memoryFor((int) subsamplers * (log2n + 2) * fingerprints) + subsamplers * (1 + 3 + hashMemory + 1 + (long) fingerprints * log2n);
+  }
+  
+  /**
+   * Describes the structures of a sampler with the given parameters, see {@link MemoryPlanner}.
+   */
+  public static String dimensions(long n, double relativeError, double absoluteError, double failureProbability) {
+    return (int) (8 * Math.log(1 / failureProbability)) + " subsamplers with " + (Long.SIZE - Long.numberOfLeadingZeros(n - 1) + 2) + " levels"
+      + " of " + SparseRecoverer.fingerprints(n, absoluteError / 7.0) + " fingerprints";
+  }
+  
+  /**
+   * Creates the sampler.
+   * Each fingerprint has a false positive probability of at most n / {@link SparseRecoverer#PRIME},
+   * so each level keeps as many fingerprints in independent points as {@link SparseRecoverer#fingerprints(long, double)}
+   * needs for a false positive probability of θ / 7, one unless the domain is larger than about 2<sup>61</sup>θ / 7.
+   * The bound is per level, so it holds whether the levels of a subsampler share the evaluation points or not,
+   * only the false positives of the levels are no longer independent.
+   * @param context A context
+   * @param n The domain size
+   * @param relativeError The relative error (ε), unused
+   * @param absoluteError The absolute error (θ)
+   * @param failureProbability The failure probability (δ)
+   * @param sharedEvaluationPoint Whether all levels of a subsampler evaluate their fingerprints in the same points,
+   * so the fingerprint terms of an update are computed only once
+   * @throws IllegalArgumentException If the domain is not smaller than {@link SparseRecoverer#PRIME}
+   */
+  public DistinctSampler(Context context, long n, double relativeError, double absoluteError, double failureProbability, boolean sharedEvaluationPoint) {
     this.n = n;
     log2n = Long.SIZE - Long.numberOfLeadingZeros(n - 1);
     subsamplers = new Subsampler[(int) (8 * Math.log(1 / failureProbability))];
-    long prime = SparseRecoverer.getPrime(n, absoluteError / 7.0);
-    for (int i = 0; i < subsamplers.length; i++) subsamplers[i] = new Subsampler(context, prime);
+    hashBuffer = new long[HASH_BATCH];
+    fingerprints = SparseRecoverer.fingerprints(n, absoluteError / 7.0);
+    recoverers = new SparseRecovererBank(n, subsamplers.length * (log2n + 2) * fingerprints);
+    Context.fill(context, subsamplers, (c, i) -> new Subsampler(c, i * (log2n + 2) * fingerprints, sharedEvaluationPoint));
+  }
+  
+  /**
+   * Creates the sampler with the evaluation point shared by the levels of each subsampler.
+   */
+  public DistinctSampler(Context context, long n, double relativeError, double absoluteError, double failureProbability) {
+    this(context, n, relativeError, absoluteError, failureProbability, true);
+  }
+  
+  /**
+   * Creates an empty replica of the sampler.
+   */
+  public DistinctSampler(DistinctSampler other) {
+    n = other.n;
+    log2n = other.log2n;
+    fingerprints = other.fingerprints;
+    subsamplers = new Subsampler[other.subsamplers.length];
+    hashBuffer = new long[HASH_BATCH];
+    recoverers = new SparseRecovererBank(other.recoverers);
+    for (int i = 0; i < subsamplers.length; i++) subsamplers[i] = new Subsampler(other.subsamplers[i]);
+  }
+  
+  /**
+   * Restores the sampler from a snapshot, the context is not used.
+   */
+  public DistinctSampler(Context context, SnapshotReader in) throws IOException {
+    n = in.readLong();
+    log2n = in.readInt();
+    fingerprints = in.readInt();
+    subsamplers = new Subsampler[in.readInt()];
+    hashBuffer = new long[HASH_BATCH];
+    for (int i = 0; i < subsamplers.length; i++) subsamplers[i] = new Subsampler(in);
+    recoverers = new SparseRecovererBank(in);
   }
   
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(n);
+    out.writeInt(log2n);
+    out.writeInt(fingerprints);
+    out.writeInt(subsamplers.length);
+    for (Subsampler subsampler : subsamplers) subsampler.write(out);
+    recoverers.write(out);
+  }
+  
+  /**
+   * Checks the index is in the domain, the fingerprints are computed only for those.
+   * @throws IllegalArgumentException If it is not
+   */
+  protected void checkIndex(long index) {
+    if (index < 0 || index >= n) throw new IllegalArgumentException("Index " + index + " is out of the domain of size " + n);
+  }
+  
+  /**
+   * @throws IllegalArgumentException If the index is out of the domain
+   */
   @Override
   public void update(long index, long frequencyChange) {
+    checkIndex(index);
     for (Subsampler subsampler : subsamplers) subsampler.update(index, frequencyChange);
   }
   
+  /**
+   * @throws IllegalArgumentException If an index is out of the domain, before any update is processed
+   */
   @Override
-  public Result query() {
-    for (Subsampler subsampler : subsamplers) {
-      Result res = subsampler.query();
-      if (res != null) return res;
-    }
-    return null;
+  public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+    for (int i = from; i < to; i++) checkIndex(indices[i]);
+    for (Subsampler subsampler : subsamplers) subsampler.update(indices, frequencyChanges, from, to);
+  }
+  
+  @Override
+  public boolean query(ResultSink sink) {
+    for (Subsampler subsampler : subsamplers) if (subsampler.query(sink)) return true;
+    return false;
+  }
+  
+  @Override
+  public void queryAll(ResultSink sink) {
+    for (Subsampler subsampler : subsamplers) if (!subsampler.query(sink)) sink.failed();
+  }
+  
+  @Override
+  public Sampler replica() {
+    return new DistinctSampler(this);
+  }
+  
+  @Override
+  public void clear() {
+    recoverers.clear();
   }
   
+  /**
+   * Adds the recoverers of the replica, which are linear sketches.
+   */
   @Override
-  public Stream<Result> queryAll() {
-    return Stream.of(subsamplers).map(Subsampler::query);
+  public void merge(Sampler other) {
+    if (!(other instanceof DistinctSampler)) throw new IllegalArgumentException("Samplers are of different kinds.");
+    DistinctSampler o = (DistinctSampler) other;
+    if (o.subsamplers.length != subsamplers.length) throw new IllegalArgumentException("Samplers have different parameters.");
+    for (int i = 0; i < subsamplers.length; i++) if (o.subsamplers[i].h != subsamplers[i].h) throw new IllegalArgumentException("Samplers have different parameters.");
+    recoverers.merge(o.recoverers);
   }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package arthenoid.hellwire.sampling.samplers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Chooses the smallest relative error (ε) for which a sampler fits into a memory budget.
+ * The sampler provides a static method {@code memoryFor(long n, double relativeError, double absoluteError, double failureProbability, long hashMemory)}
+ * computing its {@link Sampler#memoryUsed()} without allocating it, and optionally a static method
+ * {@code dimensions(long n, double relativeError, double absoluteError, double failureProbability)} describing its structures.
+ * As the memory does not grow with the relative error, it is found by a bisection of the logarithmic scale
+ * between {@link #MIN_RELATIVE_ERROR} and {@link #MAX_RELATIVE_ERROR}, until the bounds differ by the factor {@link #STEP}.
+ */
+public class MemoryPlanner {
+  public static final double MIN_RELATIVE_ERROR = 1e-6, MAX_RELATIVE_ERROR = 0.5, STEP = 1.001;
+  
+  public static class Plan {
+    public final double relativeError, absoluteError, failureProbability;
+    /** The memory used by the sampler in bytes */
+    public final long memory;
+    /** The description of the structures of the sampler, or {@code null} if not provided */
+    public final String dimensions;
+    
+    public Plan(double relativeError, double absoluteError, double failureProbability, long memory, String dimensions) {
+      this.relativeError = relativeError;
+      this.absoluteError = absoluteError;
+      this.failureProbability = failureProbability;
+      this.memory = memory;
+      this.dimensions = dimensions;
+    }
+  }
+  
+  protected final Method memoryFor, dimensions;
+  protected final long hashMemory;
+  protected final long budget;
+  
+  /**
+   * Creates the planner.
+   * @param sampler The class of the sampler
+   * @param hashMemory The memory used by a hash function, as given by {@link arthenoid.hellwire.sampling.MemoryUser#memoryUsed()}
+   * @param budget The memory budget in bytes
+   */
+  public MemoryPlanner(Class<? extends Sampler> sampler, long hashMemory, long budget) {
+    try {
+      memoryFor = sampler.getMethod("memoryFor", long.class, double.class, double.class, double.class, long.class);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException("The memory of " + sampler.getSimpleName() + " cannot be planned");
+    }
+    Method d;
+    try {
+      d = sampler.getMethod("dimensions", long.class, double.class, double.class, double.class);
+    } catch (NoSuchMethodException e) {
+      d = null;
+    }
+    dimensions = d;
+    this.hashMemory = hashMemory;
+    this.budget = budget;
+  }
+  
+  /**
+   * The memory used by the sampler with the given parameters in bytes.
+   */
+  public long memoryFor(long n, double relativeError, double absoluteError, double failureProbability) {
+    try {
+      return Long.BYTES * (long) memoryFor.invoke(null, n, relativeError, absoluteError, failureProbability, hashMemory);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  protected String dimensions(long n, double relativeError, double absoluteError, double failureProbability) {
+    if (dimensions == null) return null;
+    try {
+      return (String) dimensions.invoke(null, n, relativeError, absoluteError, failureProbability);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  protected Plan plan(long n, double relativeError, double absoluteError, double failureProbability, long memory) {
+    return new Plan(relativeError, absoluteError, failureProbability, memory, dimensions(n, relativeError, absoluteError, failureProbability));
+  }
+  
+  /**
+   * Chooses the smallest relative error for which the sampler fits into the budget.
+   * If the memory of the sampler does not depend on the relative error, the given one is kept.
+   * @param n The domain size
+   * @param relativeError The relative error used if it does not affect the memory
+   * @param absoluteError The absolute error (θ)
+   * @param failureProbability The target failure probability (δ)
+   * @throws IllegalArgumentException If the sampler does not fit into the budget with any relative error
+   */
+  public Plan plan(long n, double relativeError, double absoluteError, double failureProbability) {
+    long least = memoryFor(n, MAX_RELATIVE_ERROR, absoluteError, failureProbability);
+    if (least > budget) throw new IllegalArgumentException("The sampler needs at least " + least + " bytes");
+    long most = memoryFor(n, MIN_RELATIVE_ERROR, absoluteError, failureProbability);
+    if (most == least) {
+      long memory = memoryFor(n, relativeError, absoluteError, failureProbability);
+      if (memory > budget) throw new IllegalArgumentException("The sampler needs " + memory + " bytes");
+      return plan(n, relativeError, absoluteError, failureProbability, memory);
+    }
+    if (most <= budget) return plan(n, MIN_RELATIVE_ERROR, absoluteError, failureProbability, most);
+    // The sampler fits with the upper bound and does not with the lower one
+    double lower = MIN_RELATIVE_ERROR, upper = MAX_RELATIVE_ERROR;
+    long memory = least;
+    while (upper / lower > STEP) {
+      double ε = Math.sqrt(lower * upper);
+      long m = memoryFor(n, ε, absoluteError, failureProbability);
+      if (m <= budget) {
+        upper = ε;
+        memory = m;
+      } else {
+        lower = ε;
+      }
+    }
+    return plan(n, upper, absoluteError, failureProbability, memory);
+  }
+}
@@ -1,14 +1,16 @@
 package arthenoid.hellwire.sampling.samplers;
 
 import arthenoid.hellwire.sampling.MemoryUser;
-import arthenoid.hellwire.sampling.Result;
+import arthenoid.hellwire.sampling.ResultSink;
+import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Context;
 import arthenoid.hellwire.sampling.context.Hash;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
 import arthenoid.hellwire.sampling.structures.CountSketch;
+import arthenoid.hellwire.sampling.structures.DyadicCountSketch;
 import arthenoid.hellwire.sampling.structures.L2Sketch;
-import java.util.PriorityQueue;
-import java.util.Random;
-import java.util.stream.Stream;
+import java.io.IOException;
 
 public class PrecisionSampler implements Sampler {
   @Override
@@ -18,14 +20,16 @@ public class PrecisionSampler implements Sampler {
   
   protected final long n;
   protected final double relativeError;
-  protected final Random precisionRandom;
   protected final int sketchSize;
   protected final Subsampler[] subsamplers;
   protected final L2Sketch normSketch;
+  /** The heap of the largest estimates of an exact query, allocated by the first one */
+  protected long[] topIndices;
+  protected double[] topEstimates;
   
   @Override
-  public int memoryUsed() {
-    int m = 6 + subsamplers.length + normSketch.memoryUsed();
+  public long memoryUsed() {
+    long m = 5 + subsamplers.length + normSketch.memoryUsed();
     for (Subsampler subsampler : subsamplers) m += subsampler.memoryUsed();
     return m;
   }
@@ -33,78 +37,328 @@ public class PrecisionSampler implements Sampler {
   protected class Subsampler implements MemoryUser {
     protected final Hash precisionHash;
     protected final CountSketch sketch;
+    protected final DyadicCountSketch heavyHitters;
+    /** The indices of a part of a batch and their scaled frequency changes, allocated by the first batch update */
+    protected long[] batchIndices;
+    protected double[] scaled;
+    /** The candidates of a heavy hitter query and their estimates, allocated by the first one */
+    protected long[] candidates;
+    protected double[] estimates, selection;
     
     @Override
-    public int memoryUsed() {
-      return 2 + precisionHash.memoryUsed() + sketch.memoryUsed();
+    public long memoryUsed() {
+      return 3 + precisionHash.memoryUsed() + sketch.memoryUsed() + (heavyHitters == null ? 0 : heavyHitters.memoryUsed());
     }
     
-    protected Subsampler(Context context, int sketchRows, int sketchColumns) {
+    protected Subsampler(Context context, int sketchRows, int sketchColumns, boolean exactQuery) {
       precisionHash = context.newHash();
       sketch = new CountSketch(context, sketchRows, sketchColumns);
+      heavyHitters = exactQuery ? null : new DyadicCountSketch(context, n, sketchRows, sketchColumns);
+    }
+    
+    /**
+     * Creates a subsampler of a replica, sharing the hashes.
+     */
+    protected Subsampler(Subsampler other) {
+      precisionHash = other.precisionHash;
+      sketch = new CountSketch(other.sketch);
+      heavyHitters = other.heavyHitters == null ? null : new DyadicCountSketch(other.heavyHitters);
+    }
+    
+    protected Subsampler(SnapshotReader in) throws IOException {
+      precisionHash = in.readObject(Hash.class);
+      sketch = new CountSketch(in);
+      heavyHitters = in.readBoolean() ? new DyadicCountSketch(in) : null;
+    }
+    
+    public void write(SnapshotWriter out) throws IOException {
+      out.writeObject(precisionHash);
+      sketch.write(out);
+      out.writeBoolean(heavyHitters != null);
+      if (heavyHitters != null) heavyHitters.write(out);
     }
     
     protected double precision(long index) {
-      precisionRandom.setSeed(precisionHash.toLong(index));
-      return precisionRandom.nextDouble();
+      return precisionHash.toReal(index);
     }
     
     public void update(long index, double frequencyChange) {
-      sketch.update(index, frequencyChange / Math.sqrt(precision(index)));
+      double scaledFrequencyChange = frequencyChange / Math.sqrt(precision(index));
+      sketch.update(index, scaledFrequencyChange);
+      if (heavyHitters != null) heavyHitters.update(index, scaledFrequencyChange);
+    }
+    
+    public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+      if (scaled == null) {
+        batchIndices = new long[CountSketch.BATCH];
+        scaled = new double[CountSketch.BATCH];
+      }
+      for (int start = from; start < to; start += CountSketch.BATCH) {
+        int count = Math.min(CountSketch.BATCH, to - start);
+        System.arraycopy(indices, start, batchIndices, 0, count);
+        for (int j = 0; j < count; j++) scaled[j] = frequencyChanges[start + j] / Math.sqrt(precision(batchIndices[j]));
+        sketch.update(batchIndices, scaled, 0, count);
+        if (heavyHitters != null) heavyHitters.update(batchIndices, scaled, 0, count);
+      }
+    }
+    
+    public void clear() {
+      sketch.clear();
+      if (heavyHitters != null) heavyHitters.clear();
+    }
+    
+    public void merge(Subsampler other) {
+      if (other.precisionHash != precisionHash || (other.heavyHitters == null) != (heavyHitters == null)) throw new IllegalArgumentException("Samplers have different parameters.");
+      sketch.merge(other.sketch);
+      if (heavyHitters != null) heavyHitters.merge(other.heavyHitters);
+    }
+    
+    protected boolean accept(long peak, double estimate, double tailNorm, double norm, ResultSink sink) {
+      if (tailNorm > Math.sqrt(relativeError * sketchSize) * norm || Math.abs(estimate) < norm / Math.sqrt(relativeError)) return false;
+      sink.accept(peak, estimate * Math.sqrt(precision(peak)));
+      return true;
     }
     
-    public Result query(double norm) {
-      PriorityQueue<Result> heap = new PriorityQueue<>((r1, r2) -> Double.compare(Math.abs(r1.frequency), Math.abs(r2.frequency)));
-      long topSize = Math.min(sketchSize, n);
-      for (long i = 0; i < topSize; i++) heap.add(new Result(i, sketch.query(i)));
+    public boolean query(double norm, ResultSink sink) {
+      return heavyHitters == null ? queryExact(norm, sink) : queryHeavyHitters(norm, sink);
+    }
+    
+    /**
+     * Queries by estimating every index of the domain, keeping the largest estimates in a heap.
+     */
+    protected boolean queryExact(double norm, ResultSink sink) {
+      int topSize = (int) Math.min(sketchSize, n), size = 0;
+      if (topIndices == null) {
+        topIndices = new long[topSize + 1];
+        topEstimates = new double[topSize + 1];
+      }
+      for (long i = 0; i < topSize; i++) size = offer(size, i, sketch.query(i));
       double tailNorm = 0;
       for (long i = sketchSize; i < n; i++) {
-        heap.add(new Result(i, sketch.query(i)));
-        double f = heap.remove().frequency;
+        size = offer(size, i, sketch.query(i));
+        double f = topEstimates[0];
+        size = poll(size);
         tailNorm += f * f;
       }
       tailNorm = Math.sqrt(tailNorm);
-      Result[] top = heap.toArray(Result[]::new);
-      Result peak = top[0];
-      for (int i = 1; i < topSize; i++) if (Math.abs(top[i].frequency) > Math.abs(peak.frequency)) peak = top[i];
-      return tailNorm > Math.sqrt(relativeError * sketchSize) * norm || Math.abs(peak.frequency) < norm / Math.sqrt(relativeError) ? null : new Result(peak.index, peak.frequency * Math.sqrt(precision(peak.index)));
+      int peak = 0;
+      for (int i = 1; i < topSize; i++) if (Math.abs(topEstimates[i]) > Math.abs(topEstimates[peak])) peak = i;
+      return accept(topIndices[peak], topEstimates[peak], tailNorm, norm, sink);
+    }
+    
+    /**
+     * Queries by estimating only the candidates found by the heavy hitter hierarchy.
+     * The tail norm is estimated from the sketch with the top estimates subtracted.
+     */
+    protected boolean queryHeavyHitters(double norm, ResultSink sink) {
+      if (candidates == null) {
+        int size = (int) heavyHitters.maxCandidates(sketchSize);
+        candidates = new long[size];
+        estimates = new double[size];
+        selection = new double[size];
+      }
+      int count = heavyHitters.candidates(sketchSize, candidates);
+      for (int i = 0; i < count; i++) estimates[i] = sketch.query(candidates[i]);
+      int topSize = Util.keepLargest(sketchSize, candidates, estimates, count, selection);
+      int peak = 0;
+      for (int i = 1; i < topSize; i++) if (Math.abs(estimates[i]) > Math.abs(estimates[peak])) peak = i;
+      return accept(candidates[peak], estimates[peak], sketch.residualNorm(candidates, estimates, topSize), norm, sink);
     }
   }
   
-  public PrecisionSampler(Context context, long n, double relativeError, double absoluteError, double failureProbability) {
+  /**
+   * Adds an estimate to the heap of exact queries, ordered by the absolute value (smallest first).
+   * @return The new size of the heap
+   */
+  protected int offer(int size, long index, double estimate) {
+    int k = size;
+    while (k > 0) {
+      int parent = (k - 1) >>> 1;
+      if (Double.compare(Math.abs(estimate), Math.abs(topEstimates[parent])) >= 0) break;
+      topIndices[k] = topIndices[parent];
+      topEstimates[k] = topEstimates[parent];
+      k = parent;
+    }
+    topIndices[k] = index;
+    topEstimates[k] = estimate;
+    return size + 1;
+  }
+  
+  /**
+   * Removes the smallest estimate from the heap of exact queries.
+   * @return The new size of the heap
+   */
+  protected int poll(int size) {
+    size--;
+    long index = topIndices[size];
+    double estimate = topEstimates[size];
+    int k = 0;
+    for (int child; (child = 2 * k + 1) < size; k = child) {
+      if (child + 1 < size && Double.compare(Math.abs(topEstimates[child]), Math.abs(topEstimates[child + 1])) > 0) child++;
+      if (Double.compare(Math.abs(estimate), Math.abs(topEstimates[child])) <= 0) break;
+      topIndices[k] = topIndices[child];
+      topEstimates[k] = topEstimates[child];
+    }
+    topIndices[k] = index;
+    topEstimates[k] = estimate;
+    return size;
+  }
+  
+  protected static int sketchSize(long n, double relativeError) {
+    return (int) Math.round(15 * Math.log(n) / relativeError);
+  }
+  
+  /**
+   * The memory used by a sampler with the given parameters, see {@link MemoryPlanner}.
+   * @param hashMemory The memory used by a hash function
+   */
+  public static long memoryFor(long n, double relativeError, double absoluteError, double failureProbability, long hashMemory) {
+    long
+      sketchSize = Math.round(15 * Math.log(n) / relativeError),
+      rows = Math.round(Math.log(n));
+    // Sketches this large cannot be allocated
+    if (rows * 6 * sketchSize > Integer.MAX_VALUE) return Long.MAX_VALUE / Long.BYTES;
+    int
+      sketchRows = (int) rows,
+      sketchColumns = 6 * (int) sketchSize;
+    long
+      subsamplers = Math.round(Math.log(1 / failureProbability) / relativeError),
+      subsampler = 3 + hashMemory + CountSketch.memoryFor(sketchRows, sketchColumns, hashMemory);
+    if (n > 6L * sketchSize) subsampler += DyadicCountSketch.memoryFor(n, sketchRows, sketchColumns, hashMemory);
+    return 5 + subsamplers * (1 + subsampler) + L2Sketch.memoryFor(relativeError, hashMemory);
+  }
+  
+  /**
+   * Describes the structures of a sampler with the given parameters, see {@link MemoryPlanner}.
+   */
+  public static String dimensions(long n, double relativeError, double absoluteError, double failureProbability) {
+    int sketchSize = sketchSize(n, relativeError);
+    return Math.round(Math.log(1 / failureProbability) / relativeError) + " subsamplers with "
+      + Math.round(Math.log(n)) + "x" + 6 * sketchSize + " count sketches"
+      + (n <= 6L * sketchSize ? "" : " and dyadic heavy hitters") + ", " + L2Sketch.cells(relativeError) + " cells in the norm sketch";
+  }
+  
+  /**
+   * Creates the sampler.
+   * @param context A context
+   * @param n The domain size
+   * @param relativeError The relative error (ε)
+   * @param absoluteError The absolute error (θ)
+   * @param failureProbability The failure probability (δ)
+   * @param exactQuery Whether queries estimate every index of the domain, instead of searching for the heaviest ones
+   */
+  public PrecisionSampler(Context context, long n, double relativeError, double absoluteError, double failureProbability, boolean exactQuery) {
     this.n = n;
     this.relativeError = relativeError;
-    precisionRandom = new Random();
     double logN = Math.log(n);
-    sketchSize = (int) Math.round(15 * logN / relativeError);
+    sketchSize = sketchSize(n, relativeError);
     int
       sketchRows = (int) Math.round(logN),
       sketchColumns = 6 * sketchSize;
     subsamplers = new Subsampler[(int) Math.round(Math.log(1 / failureProbability) / relativeError)];
-    for (int i = 0; i < subsamplers.length; i++) subsamplers[i] = new Subsampler(context, sketchRows, sketchColumns);
+    Context.fill(context, subsamplers, (c, i) -> new Subsampler(c, sketchRows, sketchColumns, exactQuery));
     normSketch = new L2Sketch(context, relativeError);
   }
   
+  /**
+   * Creates the sampler, with exact queries only if the domain is not larger than the width of the sketches.
+   */
+  public PrecisionSampler(Context context, long n, double relativeError, double absoluteError, double failureProbability) {
+    this(context, n, relativeError, absoluteError, failureProbability, n <= 6L * sketchSize(n, relativeError));
+  }
+  
+  /**
+   * Creates an empty replica of the sampler.
+   */
+  public PrecisionSampler(PrecisionSampler other) {
+    n = other.n;
+    relativeError = other.relativeError;
+    sketchSize = other.sketchSize;
+    subsamplers = new Subsampler[other.subsamplers.length];
+    for (int i = 0; i < subsamplers.length; i++) subsamplers[i] = new Subsampler(other.subsamplers[i]);
+    normSketch = new L2Sketch(other.normSketch);
+  }
+  
+  /**
+   * Restores the sampler from a snapshot, the context is not used.
+   */
+  public PrecisionSampler(Context context, SnapshotReader in) throws IOException {
+    n = in.readLong();
+    relativeError = in.readDouble();
+    sketchSize = in.readInt();
+    subsamplers = new Subsampler[in.readInt()];
+    for (int i = 0; i < subsamplers.length; i++) subsamplers[i] = new Subsampler(in);
+    normSketch = new L2Sketch(in);
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(n);
+    out.writeDouble(relativeError);
+    out.writeInt(sketchSize);
+    out.writeInt(subsamplers.length);
+    for (Subsampler subsampler : subsamplers) subsampler.write(out);
+    normSketch.write(out);
+  }
+  
+  protected void checkIndex(long index) {
+    if (index < 0 || index >= n) throw new IllegalArgumentException("Index " + index + " is out of the domain of size " + n);
+  }
+  
+  /**
+   * @throws IllegalArgumentException If the index is out of the domain
+   */
   @Override
   public void update(long index, long frequencyChange) {
+    checkIndex(index);
     double realFrequencyChange = frequencyChange;
     normSketch.update(index, realFrequencyChange);
     for (Subsampler subsampler : subsamplers) subsampler.update(index, realFrequencyChange);
   }
   
+  /**
+   * @throws IllegalArgumentException If an index is out of the domain, before any update is processed
+   */
+  @Override
+  public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+    for (int i = from; i < to; i++) checkIndex(indices[i]);
+    for (int i = from; i < to; i++) normSketch.update(indices[i], frequencyChanges[i]);
+    for (Subsampler subsampler : subsamplers) subsampler.update(indices, frequencyChanges, from, to);
+  }
+  
   @Override
-  public Result query() {
+  public boolean query(ResultSink sink) {
     double norm = normSketch.query();
-    for (Subsampler subsampler : subsamplers) {
-      Result res = subsampler.query(norm);
-      if (res != null) return res;
-    }
-    return null;
+    for (Subsampler subsampler : subsamplers) if (subsampler.query(norm, sink)) return true;
+    return false;
   }
   
   @Override
-  public Stream<Result> queryAll() {
+  public void queryAll(ResultSink sink) {
     double norm = normSketch.query();
-    return Stream.of(subsamplers).map(s -> s.query(norm));
+    for (Subsampler subsampler : subsamplers) if (!subsampler.query(norm, sink)) sink.failed();
+  }
+  
+  @Override
+  public Sampler replica() {
+    return new PrecisionSampler(this);
+  }
+  
+  @Override
+  public void clear() {
+    for (Subsampler subsampler : subsamplers) subsampler.clear();
+    normSketch.clear();
+  }
+  
+  /**
+   * Adds the sketches of the replica, which are all linear.
+   */
+  @Override
+  public void merge(Sampler other) {
+    if (!(other instanceof PrecisionSampler)) throw new IllegalArgumentException("Samplers are of different kinds.");
+    PrecisionSampler o = (PrecisionSampler) other;
+    if (o.subsamplers.length != subsamplers.length) throw new IllegalArgumentException("Samplers have different parameters.");
+    normSketch.merge(o.normSketch);
+    for (int i = 0; i < subsamplers.length; i++) subsamplers[i].merge(o.subsamplers[i]);
   }
 }
\ No newline at end of file
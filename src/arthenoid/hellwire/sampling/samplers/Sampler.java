@@ -2,18 +2,94 @@ package arthenoid.hellwire.sampling.samplers;
 
 import arthenoid.hellwire.sampling.MemoryUser;
 import arthenoid.hellwire.sampling.Result;
+import arthenoid.hellwire.sampling.ResultSink;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
 import java.util.stream.Stream;
 
 /**
  * An L<sub>p<sub> sampler
+ * <p>
+ * The state written by {@link #write(arthenoid.hellwire.sampling.snapshot.SnapshotWriter)} is restored by a constructor
+ * taking a {@link arthenoid.hellwire.sampling.context.Context} and a {@link arthenoid.hellwire.sampling.snapshot.SnapshotReader}.
  */
-public interface Sampler extends MemoryUser {
+public interface Sampler extends MemoryUser, Persistent {
   /**
    * The parameter p for this sampler
    * @return The value of p
    */
   double p();
   void update(long index, long frequencyChange);
-  Result query();
-  Stream<Result> queryAll();
+  
+  /**
+   * Processes a batch of updates, equivalent to calling {@link #update(long, long)} for each of them in order.
+   * @param indices The updated indices
+   * @param frequencyChanges The changes of frequency corresponding to the indices
+   * @param from The first update of the batch (inclusive)
+   * @param to The end of the batch (exclusive)
+   */
+  default void update(long[] indices, long[] frequencyChanges, int from, int to) {
+    for (int i = from; i < to; i++) update(indices[i], frequencyChanges[i]);
+  }
+  
+  /**
+   * Samples an index, passing the sample to the sink.
+   * The scratch space of queries is allocated by the first one and reused, so the following queries do not allocate.
+   * @param sink The consumer of the sample
+   * @return Whether the query succeeded, the sink is called only if it did
+   */
+  boolean query(ResultSink sink);
+  
+  /**
+   * Queries each subsampler, passing its sample to the sink or calling {@link ResultSink#failed()} if it failed.
+   * Like {@link #query(ResultSink)}, it does not allocate after the first query.
+   * @param sink The consumer of the samples
+   */
+  void queryAll(ResultSink sink);
+  
+  default Result query() {
+    Result[] result = new Result[1];
+    query((index, frequency) -> result[0] = new Result(index, frequency));
+    return result[0];
+  }
+  
+  /**
+   * Queries each subsampler.
+   * @return The samples, {@code null} for the failed subsamplers
+   */
+  default Stream<Result> queryAll() {
+    Stream.Builder<Result> results = Stream.builder();
+    queryAll(new ResultSink() {
+      @Override
+      public void accept(long index, double frequency) {
+        results.add(new Result(index, frequency));
+      }
+      
+      @Override
+      public void failed() {
+        results.add(null);
+      }
+    });
+    return results.build();
+  }
+  
+  /**
+   * Creates an empty sampler with the same parameters, sharing the hash functions and other random choices.
+   * Replicas can process different parts of a stream independently and be merged afterwards (see {@link #merge(Sampler)}).
+   * @return The replica
+   */
+  Sampler replica();
+  
+  /**
+   * Empties the sampler, keeping its parameters and random choices, as if it were a new replica.
+   */
+  void clear();
+  
+  /**
+   * Merges the state of a replica into this sampler, so that it represents both streams.
+   * Samplers made of linear sketches merge any parts of a stream; the others may require the streams
+   * to update disjoint sets of indices (as split by {@link ShardedSampler}), which they state.
+   * @param other A replica of this sampler (or a sampler this is a replica of)
+   * @throws IllegalArgumentException If the sampler is not a replica
+   */
+  void merge(Sampler other);
 }
\ No newline at end of file
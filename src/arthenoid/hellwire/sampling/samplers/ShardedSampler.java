@@ -0,0 +1,208 @@
+package arthenoid.hellwire.sampling.samplers;
+
+import arthenoid.hellwire.sampling.ResultSink;
+import arthenoid.hellwire.sampling.Util;
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the stream among replicas of a sampler updated by separate threads.
+ * Batches of updates are partitioned by a hash of the index, so each index is always updated by the same replica,
+ * and the parts are processed concurrently.
+ * Queries are answered by merging the replicas into one kept for the queries.
+ * The threads are released by {@link #close()}.
+ * Snapshots keep the state of each replica, so a restored sampler routes every index to the replica holding its state.
+ * Replicas of samplers using the context during updates get its children (see {@link arthenoid.hellwire.sampling.context.Context#split()}),
+ * so the results are reproducible by a seed.
+ */
+public class ShardedSampler implements Sampler, AutoCloseable {
+  protected final Sampler[] shards;
+  protected final ForkJoinPool pool;
+  /** The replica the shards are merged into by queries, created by the first one */
+  protected Sampler merged;
+  /** The updates of a batch grouped by shard, the shard {@code s} occupies the range from {@code offsets[s]} to {@code offsets[s + 1]} */
+  protected long[] shardIndices, shardChanges;
+  protected final int[] offsets;
+  
+  @Override
+  public double p() {
+    return shards[0].p();
+  }
+  
+  @Override
+  public long memoryUsed() {
+    long m = 4 + shards.length + 2 * shardIndices.length + (offsets.length + 1) / 2;
+    for (Sampler shard : shards) m += shard.memoryUsed();
+    return m;
+  }
+  
+  /**
+   * Creates the sampler.
+   * @param sampler The first shard, the others are its replicas
+   * @param threads The number of shards, each updated by its own thread
+   */
+  public ShardedSampler(Sampler sampler, int threads) {
+    this(replicas(sampler, threads));
+  }
+  
+  protected ShardedSampler(Sampler[] shards) {
+    this.shards = shards;
+    pool = new ForkJoinPool(shards.length);
+    shardIndices = new long[0];
+    shardChanges = new long[0];
+    offsets = new int[shards.length + 1];
+  }
+  
+  protected static Sampler[] replicas(Sampler sampler, int threads) {
+    Sampler[] shards = new Sampler[threads];
+    shards[0] = sampler;
+    for (int i = 1; i < threads; i++) shards[i] = sampler.replica();
+    return shards;
+  }
+  
+  /**
+   * Restores the sampler from a snapshot, each shard from its own state.
+   * The first shard uses the context, the others its children, as replicas do.
+   */
+  public ShardedSampler(Context context, SnapshotReader in) throws IOException {
+    this(readShards(context, in));
+  }
+  
+  protected static Sampler[] readShards(Context context, SnapshotReader in) throws IOException {
+    Sampler[] shards = new Sampler[in.readInt()];
+    for (int i = 0; i < shards.length; i++) shards[i] = in.readSampler(i == 0 ? context : context.split());
+    return shards;
+  }
+  
+  /**
+   * Writes the number of shards and the state of each of them in order, no merged copy is made.
+   */
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(shards.length);
+    for (Sampler shard : shards) out.writeObject(shard);
+  }
+  
+  /**
+   * The number of shards, each updated by its own thread.
+   */
+  public int threads() {
+    return shards.length;
+  }
+  
+  /**
+   * The shard with the given number, the first one is the sampler the others are replicas of.
+   */
+  public Sampler getShard(int shard) {
+    return shards[shard];
+  }
+  
+  protected int shard(long index) {
+    return (int) Math.floorMod(Util.mix64(index), (long) shards.length);
+  }
+  
+  @Override
+  public void update(long index, long frequencyChange) {
+    shards[shard(index)].update(index, frequencyChange);
+  }
+  
+  /**
+   * Groups the batch by shard (by a counting sort) and updates the shards in parallel.
+   */
+  @Override
+  public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+    if (shardIndices.length < to - from) {
+      shardIndices = new long[to - from];
+      shardChanges = new long[to - from];
+    }
+    int[] next = new int[shards.length];
+    for (int i = from; i < to; i++) next[shard(indices[i])]++;
+    for (int s = 0; s < shards.length; s++) {
+      offsets[s + 1] = offsets[s] + next[s];
+      next[s] = offsets[s];
+    }
+    for (int i = from; i < to; i++) {
+      int j = next[shard(indices[i])]++;
+      shardIndices[j] = indices[i];
+      shardChanges[j] = frequencyChanges[i];
+    }
+    List<Callable<Void>> tasks = new ArrayList<>(shards.length);
+    for (int s = 0; s < shards.length; s++) {
+      Sampler shard = shards[s];
+      int shardFrom = offsets[s], shardTo = offsets[s + 1];
+      if (shardFrom < shardTo) tasks.add(() -> {
+        shard.update(shardIndices, shardChanges, shardFrom, shardTo);
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> task : pool.invokeAll(tasks)) task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while updating", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalStateException("Update failed", e.getCause());
+    }
+  }
+  
+  /**
+   * Merges all the shards into a replica, which is reused by the following calls.
+   * @return The merged sampler, valid until the next call
+   */
+  public Sampler merged() {
+    if (merged == null) merged = shards[0].replica();
+      else merged.clear();
+    for (Sampler shard : shards) merged.merge(shard);
+    return merged;
+  }
+  
+  @Override
+  public boolean query(ResultSink sink) {
+    return merged().query(sink);
+  }
+  
+  @Override
+  public void queryAll(ResultSink sink) {
+    merged().queryAll(sink);
+  }
+  
+  @Override
+  public Sampler replica() {
+    return new ShardedSampler(shards[0].replica(), shards.length);
+  }
+  
+  @Override
+  public void clear() {
+    for (Sampler shard : shards) shard.clear();
+  }
+  
+  /**
+   * Shuts down the threads updating the shards.
+   */
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+  
+  /**
+   * Merges the shards pairwise if the other sampler is sharded the same way, otherwise merges it into the first shard.
+   */
+  @Override
+  public void merge(Sampler other) {
+    if (other instanceof ShardedSampler && ((ShardedSampler) other).shards.length == shards.length) {
+      ShardedSampler o = (ShardedSampler) other;
+      for (int s = 0; s < shards.length; s++) shards[s].merge(o.shards[s]);
+    } else {
+      shards[0].merge(other);
+    }
+  }
+}
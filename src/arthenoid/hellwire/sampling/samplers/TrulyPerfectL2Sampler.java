@@ -1,13 +1,14 @@
 package arthenoid.hellwire.sampling.samplers;
 
-import arthenoid.hellwire.sampling.MemoryUser;
-import arthenoid.hellwire.sampling.Result;
+import arthenoid.hellwire.sampling.ResultSink;
 import arthenoid.hellwire.sampling.context.Context;
-import arthenoid.hellwire.sampling.structures.MisraGries;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.stream.Stream;
+import arthenoid.hellwire.sampling.metrics.Metrics;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import arthenoid.hellwire.sampling.structures.CounterTable;
+import arthenoid.hellwire.sampling.structures.MaximumEstimator;
+import arthenoid.hellwire.sampling.structures.SpaceSaving;
+import java.io.IOException;
 
 public class TrulyPerfectL2Sampler implements Sampler {
   @Override
@@ -16,101 +17,247 @@ public class TrulyPerfectL2Sampler implements Sampler {
   }
   
   protected final Context context;
-  protected final MisraGries maximumEstimator;
-  protected final Subsampler[] subsamplers;
-  protected final PriorityQueue<Subsampler> subsamplerPQ;
-  protected final Map<Long, Counter> counters;
+  protected final MaximumEstimator maximumEstimator;
+  protected final int subsamplers;
+  /** The state of the subsamplers: the counter of the selected index, the count at selection and the step of the next reset */
+  protected final int[] selected;
+  protected final long[] difference, nextStep;
+  /** A binary min-heap of subsamplers ordered by their next step */
+  protected final int[] heap;
+  protected final CounterTable counters;
   protected long step;
   
   @Override
-  public int memoryUsed() {
-    int m = 6 + (int) Math.ceil(5.5 * subsamplers.length) + maximumEstimator.memoryUsed();
-    for (Subsampler subsampler : subsamplers) m += subsampler.memoryUsed();
-    return m;
-  }
-  
-  protected class Subsampler implements MemoryUser {
-    protected long selected = -1, difference, nextStep = 1;
-    
-    @Override
-    public int memoryUsed() {
-      return 3;
+  public long memoryUsed() {
+    return 10 + 3 * subsamplers + counters.memoryUsed() + maximumEstimator.memoryUsed();
+  }
+  
+  protected long nextAfter(long current) {
+    return (long) Math.ceil(current / context.randomReal());
+  }
+  
+  protected void reset(int subsampler, int counter) {
+    Metrics.recordReset();
+    if (counter != selected[subsampler]) {
+      counters.release(selected[subsampler]);
+      selected[subsampler] = counter;
+      counters.retain(counter, 1);
     }
-    
-    protected long nextAfter(long current) {
-      return (long) Math.ceil(current / context.randomReal());
+    long next = nextStep[subsampler], nextNextStep = nextAfter(next);
+    if (nextNextStep <= step) {
+      next += 1 + context.random(step - next);
+      nextNextStep = nextAfter(step);
     }
-    
-    protected void reset(long index, Counter ctr) {
-      if (index != selected) {
-        if (--counters.get(selected).refs < 1) counters.remove(selected);
-        selected = index;
-        ctr.refs++;
-      }
-      long nextNextStep = nextAfter(nextStep);
-      if (nextNextStep <= step) {
-        nextStep += 1 + context.random(step - nextStep);
-        nextNextStep = nextAfter(step);
-      }
-      difference = ctr.count - (step - nextStep);
-      nextStep = nextNextStep;
+    difference[subsampler] = counters.count(counter) - (step - next);
+    nextStep[subsampler] = nextNextStep;
+  }
+  
+  protected void siftDown(int i) {
+    int subsampler = heap[i];
+    long key = nextStep[subsampler];
+    for (int child; (child = 2 * i + 1) < subsamplers; i = child) {
+      if (child + 1 < subsamplers && nextStep[heap[child + 1]] < nextStep[heap[child]]) child++;
+      if (nextStep[heap[child]] >= key) break;
+      heap[i] = heap[child];
     }
-    
-    protected Result query(long maxWeight) {
-      long
-        count = counters.get(selected).count - difference,
-        weight = 2 * count + 1;
-      return context.random(maxWeight) < weight ? new Result(selected, 1.5 * count + 0.75 + 0.25 / weight) : null;
+    heap[i] = subsampler;
+  }
+  
+  protected boolean query(int subsampler, long maxWeight, ResultSink sink) {
+    int counter = selected[subsampler];
+    long
+      count = counters.count(counter) - difference[subsampler],
+      weight = 2 * count + 1;
+    if (context.random(maxWeight) >= weight) return false;
+    sink.accept(counters.key(counter), 1.5 * count + 0.75 + 0.25 / weight);
+    return true;
+  }
+  
+  /**
+   * Creates the sampler.
+   * @param context A context
+   * @param n The domain size
+   * @param relativeError The relative error (ε), unused
+   * @param absoluteError The absolute error (θ), unused
+   * @param failureProbability The failure probability (δ)
+   * @param maximumEstimator An estimator of the maximum frequency, never underestimating
+   */
+  public TrulyPerfectL2Sampler(Context context, long n, double relativeError, double absoluteError, double failureProbability, MaximumEstimator maximumEstimator) {
+    this(context, (int) (4 * Math.sqrt(n) * Math.log(1 / failureProbability)), maximumEstimator);
+  }
+  
+  protected TrulyPerfectL2Sampler(Context context, int subsamplers, MaximumEstimator maximumEstimator) {
+    this.context = context;
+    this.maximumEstimator = maximumEstimator;
+    this.subsamplers = subsamplers;
+    counters = new CounterTable(subsamplers + 1);
+    selected = new int[subsamplers];
+    difference = new long[subsamplers];
+    nextStep = new long[subsamplers];
+    heap = new int[subsamplers];
+    initialise();
+  }
+  
+  /**
+   * Sets the state of an empty stream: all the subsamplers select a placeholder counter.
+   */
+  private void initialise() {
+    step = 0;
+    int initial = counters.add(-1);
+    counters.retain(initial, subsamplers);
+    for (int i = 0; i < subsamplers; i++) {
+      selected[i] = initial;
+      difference[i] = 0;
+      nextStep[i] = 1;
+      heap[i] = i;
     }
   }
   
-  protected class Counter {
-    protected long count = 0;
-    protected int refs = 0;
+  /**
+   * The memory used by a sampler with the given parameters and a {@link SpaceSaving} estimator, see {@link MemoryPlanner}.
+   * @param hashMemory The memory used by a hash function, unused
+   */
+  public static long memoryFor(long n, double relativeError, double absoluteError, double failureProbability, long hashMemory) {
+    int subsamplers = (int) (4 * Math.sqrt(n) * Math.log(1 / failureProbability));
+    return 10 + 3L * subsamplers + CounterTable.memoryFor(subsamplers + 1) + SpaceSaving.memoryFor((int) Math.sqrt(n));
+  }
+  
+  /**
+   * Describes the structures of a sampler with the given parameters, see {@link MemoryPlanner}.
+   */
+  public static String dimensions(long n, double relativeError, double absoluteError, double failureProbability) {
+    return (int) (4 * Math.sqrt(n) * Math.log(1 / failureProbability)) + " subsamplers, " + (int) Math.sqrt(n) + " indices monitored by SpaceSaving";
   }
   
+  /**
+   * Creates the sampler estimating the maximum frequency by {@link SpaceSaving} with √n monitored indices.
+   */
   public TrulyPerfectL2Sampler(Context context, long n, double relativeError, double absoluteError, double failureProbability) {
+    this(context, n, relativeError, absoluteError, failureProbability, new SpaceSaving((int) Math.sqrt(n)));
+  }
+  
+  /**
+   * Creates an empty replica of the sampler, using a child of its context,
+   * so replicas updated by different threads do not share a random generator.
+   */
+  public TrulyPerfectL2Sampler(TrulyPerfectL2Sampler other) {
+    this(other.context.split(), other.subsamplers, other.maximumEstimator.replica());
+  }
+  
+  /**
+   * Restores the sampler from a snapshot.
+   * @param context The context providing the randomness for further updates
+   * @param in The snapshot
+   */
+  public TrulyPerfectL2Sampler(Context context, SnapshotReader in) throws IOException {
     this.context = context;
-    step = 0;
-    double sqrtN = Math.sqrt(n);
-    maximumEstimator = new MisraGries((int) sqrtN);
-    subsamplers = new Subsampler[(int) (4 * sqrtN * Math.log(1 / failureProbability))];
-    subsamplerPQ = new PriorityQueue<>((s1, s2) -> Long.compare(s1.nextStep, s2.nextStep));
-    for (int i = 0; i < subsamplers.length; i++) subsamplerPQ.add(subsamplers[i] = new Subsampler());
-    counters = new HashMap<>();
-    Counter ctr = new Counter();
-    ctr.refs = subsamplers.length;
-    counters.put(-1L, ctr);
+    subsamplers = in.readInt();
+    step = in.readLong();
+    selected = in.readInts();
+    difference = in.readLongs();
+    nextStep = in.readLongs();
+    heap = in.readInts();
+    counters = new CounterTable(in);
+    maximumEstimator = in.readObject(MaximumEstimator.class);
   }
   
   @Override
-  public void update(long index, long frequencyChange) {
-    maximumEstimator.update(index, frequencyChange);
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(subsamplers);
+    out.writeLong(step);
+    out.writeInts(selected);
+    out.writeLongs(difference);
+    out.writeLongs(nextStep);
+    out.writeInts(heap);
+    counters.write(out);
+    out.writeObject(maximumEstimator);
+  }
+  
+  protected void count(long index, long frequencyChange) {
     step += frequencyChange;
-    Counter ctr = counters.get(index);
-    if (ctr == null && subsamplerPQ.peek().nextStep > step) return;
-    if (ctr == null) counters.put(index, ctr = new Counter());
-    ctr.count += frequencyChange;
-    while (subsamplerPQ.peek().nextStep <= step) {
-      Subsampler subsampler = subsamplerPQ.poll();
-      subsampler.reset(index, ctr);
-      subsamplerPQ.add(subsampler);
+    int counter = counters.find(index);
+    if (counter < 0 && nextStep[heap[0]] > step) return;
+    if (counter < 0) counter = counters.add(index);
+    counters.increase(counter, frequencyChange);
+    while (nextStep[heap[0]] <= step) {
+      reset(heap[0], counter);
+      siftDown(0);
     }
   }
   
   @Override
-  public Result query() {
+  public void update(long index, long frequencyChange) {
+    maximumEstimator.update(index, frequencyChange);
+    count(index, frequencyChange);
+  }
+  
+  @Override
+  public void update(long[] indices, long[] frequencyChanges, int from, int to) {
+    for (int i = from; i < to; i++) maximumEstimator.update(indices[i], frequencyChanges[i]);
+    for (int i = from; i < to; i++) count(indices[i], frequencyChanges[i]);
+  }
+  
+  @Override
+  public boolean query(ResultSink sink) {
     long maxWeight = 2 * maximumEstimator.queryMax() - 1;
-    for (Subsampler subsampler : subsamplers) {
-      Result res = subsampler.query(maxWeight);
-      if (res != null) return res;
-    }
-    return null;
+    for (int i = 0; i < subsamplers; i++) if (query(i, maxWeight, sink)) return true;
+    return false;
   }
   
   @Override
-  public Stream<Result> queryAll() {
+  public void queryAll(ResultSink sink) {
     long maxWeight = 2 * maximumEstimator.queryMax() - 1;
-    return Stream.of(subsamplers).map(s -> s.query(maxWeight));
+    for (int i = 0; i < subsamplers; i++) if (!query(i, maxWeight, sink)) sink.failed();
+  }
+  
+  @Override
+  public Sampler replica() {
+    return new TrulyPerfectL2Sampler(this);
+  }
+  
+  @Override
+  public void clear() {
+    counters.clear();
+    maximumEstimator.clear();
+    initialise();
+  }
+  
+  /**
+   * Combines the samplers as if the stream of the replica followed the stream of this sampler.
+   * Each subsampler takes over the selection of the replica with probability proportional to the length of its stream,
+   * so the selected position stays uniform in the combined stream.
+   * As the sampled distribution does not depend on the order of updates, the streams may be interleaved in any way,
+   * but they have to update disjoint sets of indices (as split by {@link ShardedSampler}):
+   * the counters hold only the selected indices, so the updates of an index selected here which the replica saw are not known.
+   * Under this condition the counts of a selection taken over from the replica are exact in the combined stream.
+   */
+  @Override
+  public void merge(Sampler other) {
+    if (!(other instanceof TrulyPerfectL2Sampler)) throw new IllegalArgumentException("Samplers are of different kinds.");
+    TrulyPerfectL2Sampler o = (TrulyPerfectL2Sampler) other;
+    if (o.subsamplers != subsamplers) throw new IllegalArgumentException("Samplers have different parameters.");
+    maximumEstimator.merge(o.maximumEstimator);
+    if (o.step > 0) {
+      long total = step + o.step;
+      for (int i = 0; i < subsamplers; i++) if (context.random(total) < o.step) {
+        long key = o.counters.key(o.selected[i]);
+        int counter = counters.find(key);
+        if (counter < 0) counter = counters.add(key);
+        counters.retain(counter, 1);
+        counters.release(selected[i]);
+        selected[i] = counter;
+        difference[i] = o.difference[i] + counters.count(counter);
+      }
+      for (int id = 0; id < o.counters.capacity(); id++) if (o.counters.references(id) > 0) {
+        int counter = counters.find(o.counters.key(id));
+        if (counter >= 0) counters.increase(counter, o.counters.count(id));
+      }
+      step = total;
+    }
+    for (int i = 0; i < subsamplers; i++) {
+      nextStep[i] = step == 0 ? 1 : nextAfter(step);
+      heap[i] = i;
+    }
+    for (int i = subsamplers / 2 - 1; i >= 0; i--) siftDown(i);
   }
-}
\ No newline at end of file
+}
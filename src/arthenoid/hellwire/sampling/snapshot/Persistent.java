@@ -0,0 +1,16 @@
+package arthenoid.hellwire.sampling.snapshot;
+
+import java.io.IOException;
+
+/**
+ * An object whose state can be written to a snapshot.
+ * The state is restored by a constructor taking a {@link SnapshotReader} (preceded by a context for samplers).
+ */
+public interface Persistent {
+  /**
+   * Writes the state of the object, the class itself is recorded by {@link SnapshotWriter#writeObject(Persistent)}.
+   * @param out The snapshot being written
+   * @throws IOException If writing fails
+   */
+  void write(SnapshotWriter out) throws IOException;
+}
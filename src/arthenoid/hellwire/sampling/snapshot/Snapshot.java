@@ -0,0 +1,64 @@
+package arthenoid.hellwire.sampling.snapshot;
+
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.samplers.Sampler;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A saved state of a sampler together with the number of updates it has processed.
+ * The file starts with the magic number and the format version, followed by the update count and the sampler.
+ */
+public class Snapshot {
+  public static final int MAGIC = 0x48575353, VERSION = 2;
+  
+  public final Sampler sampler;
+  public final long updates;
+  
+  public Snapshot(Sampler sampler, long updates) {
+    this.sampler = sampler;
+    this.updates = updates;
+  }
+  
+  /**
+   * Writes the snapshot to a temporary file, which then atomically replaces the target,
+   * so a valid snapshot exists even if the process is killed while writing.
+   * @param path The target file
+   * @throws IOException If writing fails
+   */
+  public void save(Path path) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      SnapshotWriter out = new SnapshotWriter(channel);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(updates);
+      out.writeObject(sampler);
+      out.flush();
+      channel.force(false);
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Reads a snapshot.
+   * @param path The file
+   * @param context The context used by the restored sampler
+   * @return The snapshot
+   * @throws IOException If reading fails or the file is not a snapshot of a supported version
+   */
+  public static Snapshot restore(Path path, Context context) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      SnapshotReader in = new SnapshotReader(channel);
+      if (in.readInt() != MAGIC) throw new IOException("Not a snapshot");
+      int version = in.readInt();
+      if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+      long updates = in.readLong();
+      return new Snapshot(in.readSampler(context), updates);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package arthenoid.hellwire.sampling.snapshot;
+
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.samplers.Sampler;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads values written by {@link SnapshotWriter} from a channel through a direct buffer.
+ */
+public class SnapshotReader {
+  protected final ReadableByteChannel channel;
+  protected final ByteBuffer buffer;
+  /** The restored objects in the order of their references */
+  protected final List<Object> restored = new ArrayList<>();
+  
+  public SnapshotReader(ReadableByteChannel channel) {
+    this.channel = channel;
+    buffer = ByteBuffer.allocateDirect(SnapshotWriter.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.flip();
+  }
+  
+  protected void require(int bytes) throws IOException {
+    if (buffer.remaining() >= bytes) return;
+    buffer.compact();
+    while (buffer.position() < bytes) if (channel.read(buffer) < 0) throw new EOFException("Snapshot is truncated");
+    buffer.flip();
+  }
+  
+  public boolean readBoolean() throws IOException {
+    require(1);
+    return buffer.get() != 0;
+  }
+  
+  public int readInt() throws IOException {
+    require(Integer.BYTES);
+    return buffer.getInt();
+  }
+  
+  public long readLong() throws IOException {
+    require(Long.BYTES);
+    return buffer.getLong();
+  }
+  
+  public double readDouble() throws IOException {
+    require(Double.BYTES);
+    return buffer.getDouble();
+  }
+  
+  public String readString() throws IOException {
+    byte[] bytes = new byte[readInt()];
+    for (int i = 0; i < bytes.length;) {
+      require(1);
+      int length = Math.min(bytes.length - i, buffer.remaining());
+      buffer.get(bytes, i, length);
+      i += length;
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+  
+  public int[] readInts() throws IOException {
+    int[] values = new int[readInt()];
+    for (int i = 0; i < values.length;) {
+      require(Integer.BYTES);
+      int length = Math.min(values.length - i, buffer.remaining() / Integer.BYTES);
+      buffer.asIntBuffer().get(values, i, length);
+      buffer.position(buffer.position() + length * Integer.BYTES);
+      i += length;
+    }
+    return values;
+  }
+  
+  public long[] readLongs() throws IOException {
+    long[] values = new long[readInt()];
+    for (int i = 0; i < values.length;) {
+      require(Long.BYTES);
+      int length = Math.min(values.length - i, buffer.remaining() / Long.BYTES);
+      buffer.asLongBuffer().get(values, i, length);
+      buffer.position(buffer.position() + length * Long.BYTES);
+      i += length;
+    }
+    return values;
+  }
+  
+  public double[] readDoubles() throws IOException {
+    double[] values = new double[readInt()];
+    for (int i = 0; i < values.length;) {
+      require(Double.BYTES);
+      int length = Math.min(values.length - i, buffer.remaining() / Double.BYTES);
+      buffer.asDoubleBuffer().get(values, i, length);
+      buffer.position(buffer.position() + length * Double.BYTES);
+      i += length;
+    }
+    return values;
+  }
+  
+  protected <T> T construct(Class<T> type, Class<?>[] parameters, Object... arguments) throws IOException {
+    int reference = readInt();
+    if (reference != SnapshotWriter.NEW_OBJECT) {
+      if (reference < 0 || reference >= restored.size() || !type.isInstance(restored.get(reference))) throw new IOException("Invalid reference " + reference);
+      return type.cast(restored.get(reference));
+    }
+    String name = readString();
+    try {
+      T object = Class.forName(name).asSubclass(type).getConstructor(parameters).newInstance(arguments);
+      restored.add(object);
+      return object;
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Cannot restore " + name, e.getCause());
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IOException("Cannot restore " + name, e);
+    }
+  }
+  
+  /**
+   * Restores an object written by {@link SnapshotWriter#writeObject(Persistent)}.
+   * @param <T> The expected type
+   * @param type The expected type
+   * @return The restored object
+   * @throws IOException If reading fails or the snapshot is invalid
+   */
+  public <T> T readObject(Class<T> type) throws IOException {
+    return construct(type, new Class<?>[] {SnapshotReader.class}, this);
+  }
+  
+  /**
+   * Restores a sampler written by {@link SnapshotWriter#writeObject(Persistent)}.
+   * @param context The context used by the sampler from now on (the hash functions are restored)
+   * @return The restored sampler
+   * @throws IOException If reading fails or the snapshot is invalid
+   */
+  public Sampler readSampler(Context context) throws IOException {
+    return construct(Sampler.class, new Class<?>[] {Context.class, SnapshotReader.class}, context, this);
+  }
+}
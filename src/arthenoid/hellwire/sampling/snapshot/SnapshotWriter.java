@@ -0,0 +1,126 @@
+package arthenoid.hellwire.sampling.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes values in little-endian order to a channel through a direct buffer.
+ * Arrays are prefixed by their length and copied into the buffer in bulk.
+ * An object written again is replaced by a reference to its first occurrence.
+ */
+public class SnapshotWriter {
+  public static final int BUFFER_SIZE = 1 << 20;
+  /** The reference preceding an object written for the first time */
+  public static final int NEW_OBJECT = -1;
+  
+  protected final WritableByteChannel channel;
+  protected final ByteBuffer buffer;
+  /** The references of the written objects, numbered in the order their states were completed */
+  protected final Map<Persistent, Integer> written = new IdentityHashMap<>();
+  
+  public SnapshotWriter(WritableByteChannel channel) {
+    this.channel = channel;
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  }
+  
+  /**
+   * Writes out the buffered data.
+   * @throws IOException If writing fails
+   */
+  public void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) channel.write(buffer);
+    buffer.clear();
+  }
+  
+  protected void ensure(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) flush();
+  }
+  
+  public void writeBoolean(boolean value) throws IOException {
+    ensure(1);
+    buffer.put((byte) (value ? 1 : 0));
+  }
+  
+  public void writeInt(int value) throws IOException {
+    ensure(Integer.BYTES);
+    buffer.putInt(value);
+  }
+  
+  public void writeLong(long value) throws IOException {
+    ensure(Long.BYTES);
+    buffer.putLong(value);
+  }
+  
+  public void writeDouble(double value) throws IOException {
+    ensure(Double.BYTES);
+    buffer.putDouble(value);
+  }
+  
+  public void writeString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeInt(bytes.length);
+    for (int i = 0; i < bytes.length;) {
+      ensure(1);
+      int length = Math.min(bytes.length - i, buffer.remaining());
+      buffer.put(bytes, i, length);
+      i += length;
+    }
+  }
+  
+  public void writeInts(int[] values) throws IOException {
+    writeInt(values.length);
+    for (int i = 0; i < values.length;) {
+      ensure(Integer.BYTES);
+      int length = Math.min(values.length - i, buffer.remaining() / Integer.BYTES);
+      buffer.asIntBuffer().put(values, i, length);
+      buffer.position(buffer.position() + length * Integer.BYTES);
+      i += length;
+    }
+  }
+  
+  public void writeLongs(long[] values) throws IOException {
+    writeInt(values.length);
+    for (int i = 0; i < values.length;) {
+      ensure(Long.BYTES);
+      int length = Math.min(values.length - i, buffer.remaining() / Long.BYTES);
+      buffer.asLongBuffer().put(values, i, length);
+      buffer.position(buffer.position() + length * Long.BYTES);
+      i += length;
+    }
+  }
+  
+  public void writeDoubles(double[] values) throws IOException {
+    writeInt(values.length);
+    for (int i = 0; i < values.length;) {
+      ensure(Double.BYTES);
+      int length = Math.min(values.length - i, buffer.remaining() / Double.BYTES);
+      buffer.asDoubleBuffer().put(values, i, length);
+      buffer.position(buffer.position() + length * Double.BYTES);
+      i += length;
+    }
+  }
+  
+  /**
+   * Writes the class of the object followed by its state, or only a reference if it was already written,
+   * so objects shared by others (e.g. the hash functions shared by replicas) are shared again when restored.
+   * @param object The object
+   * @throws IOException If writing fails
+   */
+  public void writeObject(Persistent object) throws IOException {
+    Integer reference = written.get(object);
+    if (reference != null) {
+      writeInt(reference);
+      return;
+    }
+    writeInt(NEW_OBJECT);
+    writeString(object.getClass().getName());
+    object.write(this);
+    written.put(object, written.size());
+  }
+}
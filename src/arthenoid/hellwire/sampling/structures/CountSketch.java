@@ -4,35 +4,95 @@ import arthenoid.hellwire.sampling.MemoryUser;
 import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Context;
 import arthenoid.hellwire.sampling.context.Hash;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
 
-public class CountSketch implements MemoryUser {
+/**
+ * A count sketch stored row after row in a single array.
+ * Each row has its own hash function giving both the cell and the sign, so the rows are independent
+ * and the median of the rows has the usual guarantees, with the independence of the hash family within each row
+ * (e.g. k-independent for {@link arthenoid.hellwire.sampling.context.PolynomialHash}).
+ * Batches are hashed a row at a time by the bulk hash methods.
+ * The energy (sum of squares) of each row is kept up to date by the updates, so the residual norm needs no pass over the rows.
+ */
+public class CountSketch implements MemoryUser, Persistent {
+  /** The number of indices hashed at once in batch updates */
+  public static final int BATCH = 256;
+  
   protected final int rows, columns;
-  protected final double[][] data;
+  protected final double[] data;
   protected final Hash[] hashes;
   protected final double[] query;
+  /** The sums of squares of the rows */
+  protected final double[] energies;
+  /** The hashes of a part of a batch, allocated by the first batch update */
+  protected long[] batchHashes;
+  /** The cells changed by a residual norm query and their previous values, allocated by the first one */
+  protected int[] residualCells;
+  protected double[] residualValues;
   
   @Override
-  public int memoryUsed() {
-    int m = 4 + rows * (columns + 3);
-    for (int i = 0; i < rows; i++) m += hashes[i].memoryUsed();
+  public long memoryUsed() {
+    long m = 6 + rows * (columns + 3L);
+    for (Hash hash : hashes) m += hash.memoryUsed();
     return m;
   }
   
+  /**
+   * The memory used by a sketch of the given dimensions.
+   * @param hashMemory The memory used by a hash function
+   */
+  public static long memoryFor(int rows, int columns, long hashMemory) {
+    return 6 + rows * (columns + 3L + hashMemory);
+  }
+  
   public CountSketch(Context context, int rows, int columns) {
+    if ((long) rows * columns > Integer.MAX_VALUE) throw new IllegalArgumentException("A sketch of " + rows + "x" + columns + " cells cannot be allocated");
     this.rows = rows;
     this.columns = columns;
-    data = new double[rows][columns];
+    data = new double[rows * columns];
     hashes = new Hash[rows];
     for (int i = 0; i < rows; i++) hashes[i] = context.newHash();
     query = new double[rows];
+    energies = new double[rows];
   }
   
   public CountSketch(CountSketch other) {
     rows = other.rows;
     columns = other.columns;
-    data = new double[rows][columns];
+    data = new double[rows * columns];
     hashes = other.hashes;
     query = new double[rows];
+    energies = new double[rows];
+  }
+  
+  public CountSketch(SnapshotReader in) throws IOException {
+    rows = in.readInt();
+    columns = in.readInt();
+    hashes = new Hash[rows];
+    for (int i = 0; i < rows; i++) hashes[i] = in.readObject(Hash.class);
+    data = in.readDoubles();
+    query = new double[rows];
+    energies = new double[rows];
+    computeEnergies();
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(rows);
+    out.writeInt(columns);
+    for (Hash hash : hashes) out.writeObject(hash);
+    out.writeDoubles(data);
+  }
+  
+  /**
+   * Hashes an index for a row, the cell is given by {@link #hashCell(long)} and the sign by {@link #hashSign(long)}.
+   */
+  protected long hash(int row, long index) {
+    return hashes[row].toRange(index, (long) columns << 1);
   }
   
   protected static int hashCell(long hash) {
@@ -43,23 +103,103 @@ public class CountSketch implements MemoryUser {
     return ((hash & 1) << 1) - 1;
   }
   
+  /**
+   * Recomputes the energies of the rows from their cells.
+   */
+  protected void computeEnergies() {
+    for (int i = 0, offset = 0; i < rows; i++, offset += columns) {
+      double sum = 0;
+      for (int j = offset; j < offset + columns; j++) sum += data[j] * data[j];
+      energies[i] = sum;
+    }
+  }
+  
+  /**
+   * Adds a value to a cell of a row, updating the energy of the row.
+   */
+  protected final void add(int row, int cell, double value) {
+    double previous = data[cell], current = previous + value;
+    data[cell] = current;
+    energies[row] += current * current - previous * previous;
+  }
+  
   public void update(long index, double frequencyChange) {
-    for (int i = 0; i < rows; i++) {
-      long hash = hashes[i].toRange(index, columns << 1);
-      data[i][hashCell(hash)] += hashSign(hash) * frequencyChange;
+    for (int i = 0, offset = 0; i < rows; i++, offset += columns) {
+      long hash = hash(i, index);
+      add(i, offset + hashCell(hash), hashSign(hash) * frequencyChange);
+    }
+  }
+  
+  /**
+   * Processes a batch of updates, equivalent to calling {@link #update(long, double)} for each of them.
+   * The batch is hashed a row at a time in parts of {@link #BATCH} updates.
+   * @param indices The updated indices
+   * @param frequencyChanges The changes of frequency corresponding to the indices
+   * @param from The first update of the batch (inclusive)
+   * @param to The end of the batch (exclusive)
+   */
+  public void update(long[] indices, double[] frequencyChanges, int from, int to) {
+    if (batchHashes == null) batchHashes = new long[BATCH];
+    long[] batchHashes = this.batchHashes;
+    for (int start = from; start < to; start += BATCH) {
+      int end = Math.min(start + BATCH, to);
+      for (int i = 0, offset = 0; i < rows; i++, offset += columns) {
+        hashes[i].toRange(indices, batchHashes, start, end, (long) columns << 1);
+        for (int j = 0; j < end - start; j++) add(i, offset + hashCell(batchHashes[j]), hashSign(batchHashes[j]) * frequencyChanges[start + j]);
+      }
     }
   }
   
   public double query(long index) {
-    for (int i = 0; i < rows; i++) {
-      long hash = hashes[i].toRange(index, columns << 1);
-      query[i] = data[i][hashCell(hash)] * hashSign(hash);
+    for (int i = 0, offset = 0; i < rows; i++, offset += columns) {
+      long hash = hash(i, index);
+      query[i] = data[offset + hashCell(hash)] * hashSign(hash);
     }
     return Util.mutMedian(query);
   }
   
+  /**
+   * Estimates the L<sub>2</sub> norm of the sketched vector with the given values subtracted.
+   * Only the cells of the subtracted values are visited: they are changed in place to get the change of the energy
+   * of each row, then restored.
+   * @param indices Indices of the subtracted values
+   * @param values The subtracted values
+   * @param count The number of subtracted values
+   * @return The norm estimate
+   */
+  public double residualNorm(long[] indices, double[] values, int count) {
+    if (residualCells == null || residualCells.length < count) {
+      residualCells = new int[count];
+      residualValues = new double[count];
+    }
+    int[] cells = residualCells;
+    double[] previous = residualValues;
+    for (int i = 0, offset = 0; i < rows; i++, offset += columns) {
+      double energy = energies[i];
+      for (int j = 0; j < count; j++) {
+        long hash = hash(i, indices[j]);
+        int cell = offset + hashCell(hash);
+        double value = data[cell];
+        cells[j] = cell;
+        previous[j] = value;
+        data[cell] = value - hashSign(hash) * values[j];
+        energy += data[cell] * data[cell] - value * value;
+      }
+      // In reverse, so a cell shared by several indices gets its original value
+      for (int j = count - 1; j >= 0; j--) data[cells[j]] = previous[j];
+      query[i] = Math.max(0, energy);
+    }
+    return Math.sqrt(Util.mutMedian(query));
+  }
+  
+  public void clear() {
+    Arrays.fill(data, 0);
+    Arrays.fill(energies, 0);
+  }
+  
   public void merge(CountSketch other) {
-    if (other.hashes != hashes) throw new IllegalArgumentException("Sketches have different parameters.");
-    for (int i = 0; i < rows; i++) for (int j = 0; j < columns; j++) data[i][j] += other.data[i][j];
+    if (!Arrays.equals(other.hashes, hashes)) throw new IllegalArgumentException("Sketches have different parameters.");
+    for (int i = 0; i < data.length; i++) data[i] += other.data[i];
+    computeEnergies();
   }
-}
\ No newline at end of file
+}
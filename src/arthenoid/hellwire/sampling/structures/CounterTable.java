@@ -0,0 +1,135 @@
+package arthenoid.hellwire.sampling.structures;
+
+import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reference counted counters keyed by {@code long} values, stored in primitive arrays.
+ * Each counter has a stable id (valid until it is released by its last reference), found by an open addressing table.
+ * The number of counters alive at once is limited by the capacity.
+ */
+public class CounterTable implements MemoryUser, Persistent {
+  protected final long[] keys, counts;
+  protected final int[] refs, free;
+  protected final LongIntTable index;
+  protected int freeCount;
+  
+  @Override
+  public long memoryUsed() {
+    return 6 + 2L * keys.length + (refs.length + free.length + 1L) / 2 + index.memoryUsed();
+  }
+  
+  /**
+   * The memory used by a table of the given capacity.
+   */
+  public static long memoryFor(int capacity) {
+    return 6 + 2L * capacity + (2L * capacity + 1) / 2 + LongIntTable.memoryFor(capacity);
+  }
+  
+  public CounterTable(int capacity) {
+    keys = new long[capacity];
+    counts = new long[capacity];
+    refs = new int[capacity];
+    free = new int[capacity];
+    for (int i = 0; i < capacity; i++) free[i] = capacity - 1 - i;
+    freeCount = capacity;
+    index = new LongIntTable(capacity);
+  }
+  
+  /**
+   * Removes all the counters.
+   */
+  public void clear() {
+    int capacity = keys.length;
+    Arrays.fill(refs, 0);
+    for (int i = 0; i < capacity; i++) free[i] = capacity - 1 - i;
+    freeCount = capacity;
+    index.clear();
+  }
+  
+  public CounterTable(SnapshotReader in) throws IOException {
+    keys = in.readLongs();
+    counts = in.readLongs();
+    refs = in.readInts();
+    free = in.readInts();
+    freeCount = in.readInt();
+    index = new LongIntTable(in);
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLongs(keys);
+    out.writeLongs(counts);
+    out.writeInts(refs);
+    out.writeInts(free);
+    out.writeInt(freeCount);
+    index.write(out);
+  }
+  
+  /**
+   * Finds the counter with the given key.
+   * @param key A key
+   * @return The id of the counter or -1 if there is none
+   */
+  public int find(long key) {
+    return index.get(key);
+  }
+  
+  /**
+   * Creates a counter with the given key, which must not be present, with zero count and no references.
+   * @param key A key
+   * @return The id of the new counter
+   */
+  public int add(long key) {
+    if (freeCount == 0) throw new IllegalStateException("Counter capacity exceeded");
+    int id = free[--freeCount];
+    keys[id] = key;
+    counts[id] = 0;
+    refs[id] = 0;
+    index.put(key, id);
+    return id;
+  }
+  
+  public int capacity() {
+    return keys.length;
+  }
+  
+  /**
+   * The number of references to the counter, ids without references are not in use.
+   * @param id The id of a counter
+   * @return The number of references
+   */
+  public int references(int id) {
+    return refs[id];
+  }
+  
+  public long key(int id) {
+    return keys[id];
+  }
+  
+  public long count(int id) {
+    return counts[id];
+  }
+  
+  public void increase(int id, long change) {
+    counts[id] += change;
+  }
+  
+  public void retain(int id, int references) {
+    refs[id] += references;
+  }
+  
+  /**
+   * Removes a reference to the counter, the counter is removed when it has no references left.
+   * @param id The id of the counter
+   */
+  public void release(int id) {
+    if (--refs[id] > 0) return;
+    index.remove(keys[id]);
+    free[freeCount++] = id;
+  }
+}
@@ -0,0 +1,207 @@
+package arthenoid.hellwire.sampling.structures;
+
+import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.Util;
+import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A hierarchy of count sketches over groups of indices, used to find the heaviest indices without scanning the domain.
+ * The level ℓ counts the sums of groups of 2<sup>ℓ·{@value #FANOUT_BITS}</sup> consecutive indices.
+ * The indices themselves (level zero) are not stored, the candidates are to be estimated by another sketch.
+ * The top level has at most {@value #FANOUT} groups.
+ * Levels small enough to fit into the size of a sketch are counted exactly.
+ */
+public class DyadicCountSketch implements MemoryUser, Persistent {
+  public static final int FANOUT_BITS = 4, FANOUT = 1 << FANOUT_BITS;
+  
+  protected final long n;
+  protected final int levels;
+  protected final CountSketch[] sketches;
+  protected final double[][] exact;
+  /** The groups of a part of a batch and their changes, allocated by the first batch update */
+  protected long[] batchNodes;
+  protected double[] batchChanges;
+  /** The groups and estimates of the descent of {@link #candidates(int, long[])}, allocated by the first one */
+  protected long[] candidateNodes, candidateChildren;
+  protected double[] candidateEstimates, candidateSelection;
+  
+  @Override
+  public long memoryUsed() {
+    long m = 4 + 2 * levels;
+    for (int ℓ = 1; ℓ <= levels; ℓ++) m += exact[ℓ - 1] == null ? sketches[ℓ - 1].memoryUsed() : exact[ℓ - 1].length;
+    return m;
+  }
+  
+  protected static int levels(long n) {
+    return Math.max(0, (Long.SIZE - Long.numberOfLeadingZeros(n - 1) + FANOUT_BITS - 1) / FANOUT_BITS - 1);
+  }
+  
+  protected static long nodes(long n, int level) {
+    return ((n - 1) >>> (level * FANOUT_BITS)) + 1;
+  }
+  
+  /**
+   * The memory used by a hierarchy of the given dimensions.
+   * @param hashMemory The memory used by a hash function
+   */
+  public static long memoryFor(long n, int rows, int columns, long hashMemory) {
+    int levels = levels(n);
+    long m = 4 + 2 * levels;
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      long nodes = nodes(n, ℓ);
+      m += nodes <= (long) rows * columns ? nodes : CountSketch.memoryFor(rows, columns, hashMemory);
+    }
+    return m;
+  }
+  
+  public DyadicCountSketch(Context context, long n, int rows, int columns) {
+    this.n = n;
+    levels = levels(n);
+    sketches = new CountSketch[levels];
+    exact = new double[levels][];
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      long nodes = nodes(ℓ);
+      if (nodes <= (long) rows * columns) exact[ℓ - 1] = new double[(int) nodes];
+        else sketches[ℓ - 1] = new CountSketch(context, rows, columns);
+    }
+  }
+  
+  public DyadicCountSketch(DyadicCountSketch other) {
+    n = other.n;
+    levels = other.levels;
+    sketches = new CountSketch[levels];
+    exact = new double[levels][];
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      if (other.exact[ℓ - 1] != null) exact[ℓ - 1] = new double[other.exact[ℓ - 1].length];
+        else sketches[ℓ - 1] = new CountSketch(other.sketches[ℓ - 1]);
+    }
+  }
+  
+  public DyadicCountSketch(SnapshotReader in) throws IOException {
+    n = in.readLong();
+    levels = in.readInt();
+    sketches = new CountSketch[levels];
+    exact = new double[levels][];
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      if (in.readBoolean()) exact[ℓ - 1] = in.readDoubles();
+        else sketches[ℓ - 1] = new CountSketch(in);
+    }
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(n);
+    out.writeInt(levels);
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      out.writeBoolean(exact[ℓ - 1] != null);
+      if (exact[ℓ - 1] != null) out.writeDoubles(exact[ℓ - 1]);
+        else sketches[ℓ - 1].write(out);
+    }
+  }
+  
+  protected final long nodes(int level) {
+    return nodes(n, level);
+  }
+  
+  public void update(long index, double frequencyChange) {
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      long node = index >>> (ℓ * FANOUT_BITS);
+      if (exact[ℓ - 1] != null) exact[ℓ - 1][(int) node] += frequencyChange;
+        else sketches[ℓ - 1].update(node, frequencyChange);
+    }
+  }
+  
+  /**
+   * Processes a batch of updates, equivalent to calling {@link #update(long, double)} for each of them.
+   * @param indices The updated indices
+   * @param frequencyChanges The changes of frequency corresponding to the indices
+   * @param from The first update of the batch (inclusive)
+   * @param to The end of the batch (exclusive)
+   */
+  public void update(long[] indices, double[] frequencyChanges, int from, int to) {
+    if (batchNodes == null) {
+      batchNodes = new long[CountSketch.BATCH];
+      batchChanges = new double[CountSketch.BATCH];
+    }
+    long[] batchNodes = this.batchNodes;
+    for (int start = from; start < to; start += CountSketch.BATCH) {
+      int count = Math.min(CountSketch.BATCH, to - start);
+      System.arraycopy(frequencyChanges, start, batchChanges, 0, count);
+      for (int ℓ = 1; ℓ <= levels; ℓ++) {
+        int shift = ℓ * FANOUT_BITS;
+        for (int j = 0; j < count; j++) batchNodes[j] = indices[start + j] >>> shift;
+        if (exact[ℓ - 1] != null) {
+          double[] counts = exact[ℓ - 1];
+          for (int j = 0; j < count; j++) counts[(int) batchNodes[j]] += batchChanges[j];
+        } else sketches[ℓ - 1].update(batchNodes, batchChanges, 0, count);
+      }
+    }
+  }
+  
+  protected double query(int level, long node) {
+    return exact[level - 1] != null ? exact[level - 1][(int) node] : sketches[level - 1].query(node);
+  }
+  
+  /**
+   * The maximal number of candidates given by {@link #candidates(int, long[])}.
+   */
+  public long maxCandidates(int k) {
+    return Math.min(n, (long) k * FANOUT);
+  }
+  
+  /**
+   * Descends the hierarchy keeping the given number of the heaviest groups on each level.
+   * The scratch arrays are allocated by the first call and reused by the following ones with the same {@code k}.
+   * @param k The number of groups kept on each level
+   * @param candidates An array of at least {@link #maxCandidates(int)} values, receives indices which are children of the heaviest groups on the lowest level
+   * @return The number of candidates
+   */
+  public int candidates(int k, long[] candidates) {
+    int size = (int) Math.max(nodes(levels), maxCandidates(k));
+    if (candidateNodes == null || candidateNodes.length < size) {
+      candidateNodes = new long[size];
+      candidateChildren = new long[size];
+      candidateEstimates = new double[size];
+      candidateSelection = new double[size];
+    }
+    long[] nodes = candidateNodes, children = candidateChildren;
+    int count = (int) nodes(levels);
+    for (int i = 0; i < count; i++) nodes[i] = i;
+    for (int ℓ = levels; ℓ >= 1; ℓ--) {
+      for (int i = 0; i < count; i++) candidateEstimates[i] = query(ℓ, nodes[i]);
+      int kept = Util.keepLargest(k, nodes, candidateEstimates, count, candidateSelection);
+      long end = nodes(ℓ - 1);
+      count = 0;
+      for (int i = 0; i < kept; i++) {
+        long first = nodes[i] << FANOUT_BITS, last = Math.min(first + FANOUT, end);
+        for (long child = first; child < last; child++) children[count++] = child;
+      }
+      long[] swap = nodes;
+      nodes = children;
+      children = swap;
+    }
+    System.arraycopy(nodes, 0, candidates, 0, count);
+    return count;
+  }
+  
+  public void clear() {
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      if (exact[ℓ - 1] == null) sketches[ℓ - 1].clear();
+        else Arrays.fill(exact[ℓ - 1], 0);
+    }
+  }
+  
+  public void merge(DyadicCountSketch other) {
+    if (other.n != n) throw new IllegalArgumentException("Sketches have different parameters.");
+    for (int ℓ = 1; ℓ <= levels; ℓ++) {
+      if ((exact[ℓ - 1] == null) != (other.exact[ℓ - 1] == null)) throw new IllegalArgumentException("Sketches have different parameters.");
+      if (exact[ℓ - 1] == null) sketches[ℓ - 1].merge(other.sketches[ℓ - 1]);
+        else for (int i = 0; i < exact[ℓ - 1].length; i++) exact[ℓ - 1][i] += other.exact[ℓ - 1][i];
+    }
+  }
+}
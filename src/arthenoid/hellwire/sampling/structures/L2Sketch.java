@@ -4,28 +4,45 @@ import arthenoid.hellwire.sampling.MemoryUser;
 import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Context;
 import arthenoid.hellwire.sampling.context.Hash;
-import java.util.Random;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
 
-public class L2Sketch implements MemoryUser {
+public class L2Sketch implements MemoryUser, Persistent {
   /** One over median of absolute value of normal standard distribution */
   public static final double INV_BETA = 1.4826022185056018;
   
   protected final int cells;
   protected final double[] data, query;
   protected final Hash h;
-  protected final Random r;
   
   @Override
-  public int memoryUsed() {
-    return 5 + 2 * cells + h.memoryUsed();
+  public long memoryUsed() {
+    return 4 + 2 * cells + h.memoryUsed();
+  }
+  
+  /**
+   * The number of cells of a sketch with the given relative error.
+   */
+  public static int cells(double relativeError) {
+    return (int) (8 * Math.log(1 / relativeError));
+  }
+  
+  /**
+   * The memory used by a sketch with the given relative error.
+   * @param hashMemory The memory used by a hash function
+   */
+  public static long memoryFor(double relativeError, long hashMemory) {
+    return 4 + 2L * cells(relativeError) + hashMemory;
   }
   
   public L2Sketch(Context context, double relativeError) {
-    cells = (int) (8 * Math.log(1 / relativeError));
+    cells = cells(relativeError);
     data = new double[cells];
     query = new double[cells];
     h = context.newHash();
-    r = new Random();
   }
   
   public L2Sketch(L2Sketch other) {
@@ -33,12 +50,34 @@ public class L2Sketch implements MemoryUser {
     data = new double[cells];
     query = new double[cells];
     h = other.h;
-    r = new Random();
   }
   
+  public L2Sketch(SnapshotReader in) throws IOException {
+    h = in.readObject(Hash.class);
+    data = in.readDoubles();
+    cells = data.length;
+    query = new double[cells];
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeObject(h);
+    out.writeDoubles(data);
+  }
+  
+  /**
+   * Adds the frequency change multiplied by a vector of standard normal values determined by the index.
+   * The values are generated in pairs by the Box–Muller transform from the index hash.
+   */
   public void update(long index, double frequencyChange) {
-    r.setSeed(h.toLong(index));
-    for (int i = 0; i < cells; i++) data[i] += r.nextGaussian() * frequencyChange;
+    long key = h.toLong(index);
+    for (int i = 0; i < cells; i += 2) {
+      double
+        radius = Math.sqrt(-2 * Math.log(Context.keyedReal(key, i))) * frequencyChange,
+        angle = 2 * Math.PI * Context.keyedReal(key, i + 1);
+      data[i] += radius * Math.cos(angle);
+      if (i + 1 < cells) data[i + 1] += radius * Math.sin(angle);
+    }
   }
   
   public double query() {
@@ -46,6 +85,10 @@ public class L2Sketch implements MemoryUser {
     return INV_BETA * Util.mutMedian(query);
   }
   
+  public void clear() {
+    Arrays.fill(data, 0);
+  }
+  
   public void merge(L2Sketch other) {
     if (other.h != h) throw new IllegalArgumentException("Sketches have different parameters.");
     for (int i = 0; i < cells; i++) data[i] += other.data[i];
@@ -0,0 +1,110 @@
+package arthenoid.hellwire.sampling.structures;
+
+import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.Util;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A map from {@code long} keys to non-negative {@code int} values with open addressing (linear probing) and a fixed capacity.
+ */
+public class LongIntTable implements MemoryUser, Persistent {
+  protected final long[] keys;
+  /** The values increased by one, zero marks an empty slot */
+  protected final int[] values;
+  protected final int mask;
+  
+  @Override
+  public long memoryUsed() {
+    return 3 + keys.length + (values.length + 1) / 2;
+  }
+  
+  protected static int slots(int capacity) {
+    return Integer.highestOneBit(Math.max(1, 2 * capacity - 1)) << 1;
+  }
+  
+  /**
+   * The memory used by a table of the given capacity.
+   */
+  public static long memoryFor(int capacity) {
+    long slots = slots(capacity);
+    return 3 + slots + (slots + 1) / 2;
+  }
+  
+  /**
+   * Creates an empty table.
+   * @param capacity The maximum number of entries, the table has at least twice as many slots
+   */
+  public LongIntTable(int capacity) {
+    int slots = slots(capacity);
+    keys = new long[slots];
+    values = new int[slots];
+    mask = slots - 1;
+  }
+  
+  public LongIntTable(SnapshotReader in) throws IOException {
+    keys = in.readLongs();
+    values = in.readInts();
+    mask = keys.length - 1;
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLongs(keys);
+    out.writeInts(values);
+  }
+  
+  protected int home(long key) {
+    return (int) Util.mix64(key) & mask;
+  }
+  
+  /**
+   * Finds the value for a key.
+   * @param key A key
+   * @return The value or -1 if the key is not present
+   */
+  public int get(long key) {
+    for (int slot = home(key); values[slot] != 0; slot = (slot + 1) & mask) if (keys[slot] == key) return values[slot] - 1;
+    return -1;
+  }
+  
+  /**
+   * Adds a key, which must not be present.
+   * @param key A key
+   * @param value A non-negative value
+   */
+  public void put(long key, int value) {
+    int slot = home(key);
+    while (values[slot] != 0) slot = (slot + 1) & mask;
+    keys[slot] = key;
+    values[slot] = value + 1;
+  }
+  
+  /**
+   * Removes all the keys.
+   */
+  public void clear() {
+    Arrays.fill(values, 0);
+  }
+  
+  /**
+   * Removes a key, which must be present.
+   * The entries following in the probe sequence are shifted back, so no tombstones are needed.
+   * @param key A key
+   */
+  public void remove(long key) {
+    int slot = home(key);
+    while (keys[slot] != key || values[slot] == 0) slot = (slot + 1) & mask;
+    for (int next = (slot + 1) & mask; values[next] != 0; next = (next + 1) & mask) {
+      if (((next - home(keys[next])) & mask) >= ((next - slot) & mask)) {
+        keys[slot] = keys[next];
+        values[slot] = values[next];
+        slot = next;
+      }
+    }
+    values[slot] = 0;
+  }
+}
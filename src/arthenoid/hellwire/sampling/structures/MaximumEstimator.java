@@ -0,0 +1,35 @@
+package arthenoid.hellwire.sampling.structures;
+
+import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+
+/**
+ * An estimator of the maximum frequency in a stream of updates
+ */
+public interface MaximumEstimator extends MemoryUser, Persistent {
+  void update(long index, long frequencyChange);
+  
+  /**
+   * Estimates the maximum frequency, the estimate is never smaller than the real value (for non-negative changes).
+   * @return The estimate
+   */
+  long queryMax();
+  
+  /**
+   * Creates an empty estimator with the same parameters.
+   * @return The replica
+   */
+  MaximumEstimator replica();
+  
+  /**
+   * Removes all the counts, as if the estimator were a new replica.
+   */
+  void clear();
+  
+  /**
+   * Adds the counts of another estimator, the estimate stays an upper bound of the maximum of the summed frequencies.
+   * @param other An estimator of the same kind
+   * @throws IllegalArgumentException If the estimator is of a different kind
+   */
+  void merge(MaximumEstimator other);
+}
@@ -1,12 +1,14 @@
 package arthenoid.hellwire.sampling.structures;
 
-import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.TreeSet;
 
-public class MisraGries implements MemoryUser {
+public class MisraGries implements MaximumEstimator {
   protected final int factor;
   protected long removed;
   protected final Map<Long, MultisetEntry> data;
@@ -29,7 +31,7 @@ public class MisraGries implements MemoryUser {
   }
   
   @Override
-  public int memoryUsed() {
+  public long memoryUsed() {
     return 4 + 6 * factor;
   }
   
@@ -40,6 +42,26 @@ public class MisraGries implements MemoryUser {
     queue = new TreeSet<>();
   }
   
+  public MisraGries(SnapshotReader in) throws IOException {
+    this(in.readInt());
+    removed = in.readLong();
+    long[] values = in.readLongs(), counts = in.readLongs();
+    for (int i = 0; i < values.length; i++) {
+      MultisetEntry entry = new MultisetEntry(values[i], counts[i]);
+      data.put(values[i], entry);
+      queue.add(entry);
+    }
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(factor);
+    out.writeLong(removed);
+    out.writeLongs(queue.stream().mapToLong(e -> e.value).toArray());
+    out.writeLongs(queue.stream().mapToLong(e -> e.count).toArray());
+  }
+  
+  @Override
   public void update(long index, long frequencyChange) {
     MultisetEntry entry = data.get(index);
     if (entry == null) {
@@ -57,7 +79,28 @@ public class MisraGries implements MemoryUser {
     }
   }
   
+  @Override
   public long queryMax() {
     return queue.stream().mapToLong(e -> e.count).max().orElse(removed);
   }
+  
+  @Override
+  public MaximumEstimator replica() {
+    return new MisraGries(factor);
+  }
+  
+  @Override
+  public void clear() {
+    removed = 0;
+    data.clear();
+    queue.clear();
+  }
+  
+  @Override
+  public void merge(MaximumEstimator other) {
+    if (!(other instanceof MisraGries)) throw new IllegalArgumentException("Estimators are of different kinds.");
+    MisraGries o = (MisraGries) other;
+    removed = Math.max(removed, o.removed);
+    for (MultisetEntry entry : o.queue.toArray(MultisetEntry[]::new)) update(entry.value, entry.count);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,401 @@
+package arthenoid.hellwire.sampling.structures;
+
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The Space-Saving algorithm, stored in primitive arrays.
+ * While all the changes are ±1, the monitored indices are kept in the stream-summary structure:
+ * buckets of equal counts forming a list sorted by the count, so an update takes constant time
+ * and the minimum (for replacement) and maximum (for queries) are the ends of the list.
+ * The first larger change switches the structure to an indexed min-heap of the counts, as a change could skip over many buckets,
+ * then an update takes logarithmic time and the maximum is the largest count seen since the switch,
+ * which is exact for non-negative changes and an upper bound otherwise.
+ */
+public class SpaceSaving implements MaximumEstimator {
+  protected static final int NONE = -1;
+  
+  protected final int capacity;
+  protected int size;
+  protected final LongIntTable index;
+  
+  protected final long[] keys;
+  protected final int[] itemBucket, itemPrev, itemNext;
+  
+  protected final long[] bucketCount;
+  protected final int[] bucketFirst, bucketPrev, bucketNext, freeBuckets;
+  protected int freeBucketCount, minBucket, maxBucket;
+  
+  /** Whether the counts are kept in the heap instead of the buckets */
+  protected boolean weighted;
+  protected final long[] itemCount;
+  /** The items ordered as a binary min-heap by their counts and the position of each item in it */
+  protected final int[] heap, heapPosition;
+  protected long maxCount;
+  /** The entries combined by {@link #merge(MaximumEstimator)}, their sorted counts and the buckets of the kept counts, allocated by the first merge */
+  protected long[] mergeKeys, mergeCounts, mergeSorted;
+  protected int[] mergeBuckets;
+  
+  @Override
+  public long memoryUsed() {
+    return 16L + 2L * capacity + (5L * capacity + 1) / 2 + (capacity + 1L) * 3 + index.memoryUsed();
+  }
+  
+  /**
+   * The memory used by a structure of the given capacity.
+   */
+  public static long memoryFor(int capacity) {
+    long c = Math.max(1, capacity);
+    return 16 + 2 * c + (5 * c + 1) / 2 + (c + 1) * 3 + LongIntTable.memoryFor((int) c);
+  }
+  
+  /**
+   * Creates the structure.
+   * @param capacity The number of monitored indices
+   */
+  public SpaceSaving(int capacity) {
+    capacity = Math.max(1, capacity);
+    this.capacity = capacity;
+    size = 0;
+    index = new LongIntTable(capacity);
+    keys = new long[capacity];
+    itemBucket = new int[capacity];
+    itemPrev = new int[capacity];
+    itemNext = new int[capacity];
+    bucketCount = new long[capacity + 1];
+    bucketFirst = new int[capacity + 1];
+    bucketPrev = new int[capacity + 1];
+    bucketNext = new int[capacity + 1];
+    freeBuckets = new int[capacity + 1];
+    for (int i = 0; i <= capacity; i++) freeBuckets[i] = i;
+    freeBucketCount = capacity + 1;
+    minBucket = maxBucket = NONE;
+    weighted = false;
+    itemCount = new long[capacity];
+    heap = new int[capacity];
+    heapPosition = new int[capacity];
+    maxCount = 0;
+  }
+  
+  public SpaceSaving(SnapshotReader in) throws IOException {
+    capacity = in.readInt();
+    size = in.readInt();
+    index = new LongIntTable(in);
+    keys = in.readLongs();
+    itemBucket = in.readInts();
+    itemPrev = in.readInts();
+    itemNext = in.readInts();
+    bucketCount = in.readLongs();
+    bucketFirst = in.readInts();
+    bucketPrev = in.readInts();
+    bucketNext = in.readInts();
+    freeBuckets = in.readInts();
+    freeBucketCount = in.readInt();
+    minBucket = in.readInt();
+    maxBucket = in.readInt();
+    weighted = in.readBoolean();
+    itemCount = in.readLongs();
+    heap = in.readInts();
+    heapPosition = in.readInts();
+    maxCount = in.readLong();
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeInt(capacity);
+    out.writeInt(size);
+    index.write(out);
+    out.writeLongs(keys);
+    out.writeInts(itemBucket);
+    out.writeInts(itemPrev);
+    out.writeInts(itemNext);
+    out.writeLongs(bucketCount);
+    out.writeInts(bucketFirst);
+    out.writeInts(bucketPrev);
+    out.writeInts(bucketNext);
+    out.writeInts(freeBuckets);
+    out.writeInt(freeBucketCount);
+    out.writeInt(minBucket);
+    out.writeInt(maxBucket);
+    out.writeBoolean(weighted);
+    out.writeLongs(itemCount);
+    out.writeInts(heap);
+    out.writeInts(heapPosition);
+    out.writeLong(maxCount);
+  }
+  
+  protected int newBucket(long count, int prev, int next) {
+    int bucket = freeBuckets[--freeBucketCount];
+    bucketCount[bucket] = count;
+    bucketFirst[bucket] = NONE;
+    bucketPrev[bucket] = prev;
+    bucketNext[bucket] = next;
+    if (prev == NONE) minBucket = bucket;
+      else bucketNext[prev] = bucket;
+    if (next == NONE) maxBucket = bucket;
+      else bucketPrev[next] = bucket;
+    return bucket;
+  }
+  
+  protected void removeBucket(int bucket) {
+    int prev = bucketPrev[bucket], next = bucketNext[bucket];
+    if (prev == NONE) minBucket = next;
+      else bucketNext[prev] = next;
+    if (next == NONE) maxBucket = prev;
+      else bucketPrev[next] = prev;
+    freeBuckets[freeBucketCount++] = bucket;
+  }
+  
+  protected void attach(int item, int bucket) {
+    int first = bucketFirst[bucket];
+    itemBucket[item] = bucket;
+    itemPrev[item] = NONE;
+    itemNext[item] = first;
+    if (first != NONE) itemPrev[first] = item;
+    bucketFirst[bucket] = item;
+  }
+  
+  protected void detach(int item) {
+    int prev = itemPrev[item], next = itemNext[item];
+    if (prev == NONE) bucketFirst[itemBucket[item]] = next;
+      else itemNext[prev] = next;
+    if (next != NONE) itemPrev[next] = prev;
+  }
+  
+  /**
+   * Puts a detached item to the bucket with the given count, searching the list from the given bucket.
+   * Only neighbouring buckets are searched by changes of ±1.
+   * @param item The item
+   * @param count The new count of the item
+   * @param near A bucket to start the search from or {@link #NONE} to start from the minimum
+   */
+  protected void place(int item, long count, int near) {
+    int prev, next;
+    if (near == NONE) {
+      prev = NONE;
+      next = minBucket;
+    } else {
+      prev = near;
+      next = bucketNext[near];
+    }
+    while (next != NONE && bucketCount[next] <= count) {
+      prev = next;
+      next = bucketNext[next];
+    }
+    while (prev != NONE && bucketCount[prev] > count) {
+      next = prev;
+      prev = bucketPrev[prev];
+    }
+    attach(item, prev != NONE && bucketCount[prev] == count ? prev : newBucket(count, prev, next));
+  }
+  
+  protected void move(int item, long count) {
+    int bucket = itemBucket[item];
+    if (bucketCount[bucket] == count) return;
+    detach(item);
+    place(item, count, bucket);
+    if (bucketFirst[bucket] == NONE) removeBucket(bucket);
+  }
+  
+  protected void heapSet(int position, int item) {
+    heap[position] = item;
+    heapPosition[item] = position;
+  }
+  
+  protected void siftUp(int position) {
+    int item = heap[position];
+    long count = itemCount[item];
+    while (position > 0) {
+      int parent = (position - 1) / 2;
+      if (itemCount[heap[parent]] <= count) break;
+      heapSet(position, heap[parent]);
+      position = parent;
+    }
+    heapSet(position, item);
+  }
+  
+  protected void siftDown(int position) {
+    int item = heap[position];
+    long count = itemCount[item];
+    for (int child; (child = 2 * position + 1) < size; position = child) {
+      if (child + 1 < size && itemCount[heap[child + 1]] < itemCount[heap[child]]) child++;
+      if (count <= itemCount[heap[child]]) break;
+      heapSet(position, heap[child]);
+    }
+    heapSet(position, item);
+  }
+  
+  /**
+   * Sets the count of a monitored item in the heap.
+   */
+  protected void heapMove(int item, long count) {
+    long previous = itemCount[item];
+    itemCount[item] = count;
+    if (count > previous) siftDown(heapPosition[item]);
+      else siftUp(heapPosition[item]);
+    if (count > maxCount) maxCount = count;
+  }
+  
+  /**
+   * Heapifies the items by their counts in {@link #itemCount} and sets the maximum.
+   */
+  protected void buildHeap() {
+    maxCount = 0;
+    for (int item = 0; item < size; item++) {
+      heapSet(item, item);
+      if (item == 0 || itemCount[item] > maxCount) maxCount = itemCount[item];
+    }
+    for (int position = size / 2 - 1; position >= 0; position--) siftDown(position);
+  }
+  
+  /**
+   * Moves the counts from the buckets to the heap.
+   */
+  protected void switchToHeap() {
+    weighted = true;
+    for (int item = 0; item < size; item++) itemCount[item] = bucketCount[itemBucket[item]];
+    buildHeap();
+  }
+  
+  protected void weightedUpdate(long index, long frequencyChange) {
+    int item = this.index.get(index);
+    if (item != NONE) {
+      heapMove(item, itemCount[item] + frequencyChange);
+    } else if (size < capacity) {
+      item = size++;
+      keys[item] = index;
+      this.index.put(index, item);
+      itemCount[item] = frequencyChange;
+      heapSet(item, item);
+      siftUp(item);
+      if (item == 0 || frequencyChange > maxCount) maxCount = frequencyChange;
+    } else {
+      item = heap[0];
+      this.index.remove(keys[item]);
+      keys[item] = index;
+      this.index.put(index, item);
+      heapMove(item, itemCount[item] + frequencyChange);
+    }
+  }
+  
+  @Override
+  public void update(long index, long frequencyChange) {
+    if (!weighted) {
+      if (frequencyChange == 1 || frequencyChange == -1) {
+        unitUpdate(index, frequencyChange);
+        return;
+      }
+      switchToHeap();
+    }
+    weightedUpdate(index, frequencyChange);
+  }
+  
+  protected void unitUpdate(long index, long frequencyChange) {
+    int item = this.index.get(index);
+    if (item != NONE) {
+      move(item, bucketCount[itemBucket[item]] + frequencyChange);
+    } else if (size < capacity) {
+      item = size++;
+      keys[item] = index;
+      this.index.put(index, item);
+      place(item, frequencyChange, NONE);
+    } else {
+      item = bucketFirst[minBucket];
+      this.index.remove(keys[item]);
+      keys[item] = index;
+      this.index.put(index, item);
+      move(item, bucketCount[minBucket] + frequencyChange);
+    }
+  }
+  
+  @Override
+  public long queryMax() {
+    if (size == 0) return 0;
+    return weighted ? maxCount : bucketCount[maxBucket];
+  }
+  
+  @Override
+  public MaximumEstimator replica() {
+    return new SpaceSaving(capacity);
+  }
+  
+  @Override
+  public void clear() {
+    index.clear();
+    size = 0;
+    for (int bucket = 0; bucket <= capacity; bucket++) freeBuckets[bucket] = bucket;
+    freeBucketCount = capacity + 1;
+    minBucket = maxBucket = NONE;
+    weighted = false;
+    maxCount = 0;
+  }
+  
+  protected long count(int item) {
+    return weighted ? itemCount[item] : bucketCount[itemBucket[item]];
+  }
+  
+  /**
+   * The count of an index which is not monitored is at most the minimum count, or zero if the structure is not full.
+   */
+  protected long unmonitoredCount() {
+    if (size < capacity) return 0;
+    return weighted ? itemCount[heap[0]] : bucketCount[minBucket];
+  }
+  
+  /**
+   * Combines the structures as mergeable summaries: each index monitored by either of them gets the sum of its counts,
+   * taking {@link #unmonitoredCount()} of the structure not monitoring it, and the heaviest ones are kept.
+   * The counts stay upper bounds of the summed frequencies, whether the structures saw the same indices or not.
+   */
+  @Override
+  public void merge(MaximumEstimator other) {
+    if (!(other instanceof SpaceSaving)) throw new IllegalArgumentException("Estimators are of different kinds.");
+    SpaceSaving o = (SpaceSaving) other;
+    if (mergeKeys == null || mergeKeys.length < size + o.size) {
+      mergeKeys = new long[size + o.size];
+      mergeCounts = new long[size + o.size];
+      mergeSorted = new long[size + o.size];
+    }
+    if (mergeBuckets == null) mergeBuckets = new int[capacity];
+    long unmonitored = unmonitoredCount(), otherUnmonitored = o.unmonitoredCount();
+    int total = 0;
+    for (int item = 0; item < size; item++) {
+      int otherItem = o.index.get(keys[item]);
+      mergeKeys[total] = keys[item];
+      mergeCounts[total++] = count(item) + (otherItem == NONE ? otherUnmonitored : o.count(otherItem));
+    }
+    for (int item = 0; item < o.size; item++) if (index.get(o.keys[item]) == NONE) {
+      mergeKeys[total] = o.keys[item];
+      mergeCounts[total++] = o.count(item) + unmonitored;
+    }
+    // The kept counts are the largest ones, the ties with the smallest kept count are kept in order
+    long[] sorted = mergeSorted;
+    System.arraycopy(mergeCounts, 0, sorted, 0, total);
+    Arrays.sort(sorted, 0, total);
+    int start = Math.max(0, total - capacity), ties = 0;
+    long threshold = total == 0 ? 0 : sorted[start];
+    for (int i = start; i < total && sorted[i] == threshold; i++) ties++;
+    // The merged structure keeps the heap if either of them does
+    boolean keepHeap = weighted || o.weighted;
+    clear();
+    weighted = keepHeap;
+    // The buckets of the distinct kept counts, in increasing order, their counts are moved to the beginning
+    int distinct = 0;
+    if (!weighted) for (int i = start; i < total; i++) if (distinct == 0 || sorted[i] != sorted[distinct - 1]) {
+      sorted[distinct] = sorted[i];
+      mergeBuckets[distinct++] = newBucket(sorted[i], maxBucket, NONE);
+    }
+    for (int j = 0; j < total; j++) {
+      long count = mergeCounts[j];
+      if (count < threshold || (count == threshold && ties-- <= 0)) continue;
+      int item = size++;
+      keys[item] = mergeKeys[j];
+      index.put(mergeKeys[j], item);
+      if (weighted) itemCount[item] = count;
+        else attach(item, mergeBuckets[Arrays.binarySearch(sorted, 0, distinct, count)]);
+    }
+    if (weighted) buildHeap();
+  }
+}
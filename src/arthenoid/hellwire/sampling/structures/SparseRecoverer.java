@@ -3,58 +3,176 @@ package arthenoid.hellwire.sampling.structures;
 import arthenoid.hellwire.sampling.MemoryUser;
 import arthenoid.hellwire.sampling.Util;
 import arthenoid.hellwire.sampling.context.Context;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
 
-public class SparseRecoverer implements MemoryUser {
-  protected static final long[] PRIMES = new long[] {
-    151,
-    36857,
-    8746519,
-    3445524211L,
-    888858060049L,
-    199279949697637L,
-    51066190452443059L,
-    6804604908702072427L
-  };
+/**
+ * A 1-sparse recovery structure with a polynomial fingerprint over the field modulo {@link #PRIME}.
+ * The sum of the frequencies weighted by the indices is kept in the field too, so it does not overflow for large domains.
+ */
+public class SparseRecoverer implements MemoryUser, Persistent {
+  /** The prime for the fingerprints, a Mersenne prime, so the arithmetic needs no division */
+  public static final long PRIME = Util.MERSENNE_PRIME;
+  /** The largest number of fingerprints given by {@link #fingerprints(long, double)} */
+  public static final int MAX_FINGERPRINTS = 64;
+  
+  /** Returned by {@link #recover(long, long, long, long, long)} if all frequencies are zero */
+  public static final long EMPTY = -1;
+  /** Returned by {@link #recover(long, long, long, long, long)} if there are more non-zero indices */
+  public static final long FAILED = -2;
   
   /**
-   * Chooses a prime number large enough to guarantee the probability of a false positive is small enough.
+   * Chooses the number of fingerprints in independent points needed to guarantee the probability of a false positive is small enough.
+   * The probability is at most n / {@link #PRIME} for one fingerprint and its power for more of them.
    * @param n The domain size
    * @param falsePositiveProbability The maximum accepted probability
-   * @return A prime
+   * @return The number of fingerprints
+   * @throws IllegalArgumentException If the domain is not smaller than the prime or it needs more than {@link #MAX_FINGERPRINTS}
    */
-  public static long getPrime(long n, double falsePositiveProbability) {
-    for (long prime : PRIMES) if (prime >= n / falsePositiveProbability) return prime;
-    throw new IllegalArgumentException("Large enough prime not available");
+  public static int fingerprints(long n, double falsePositiveProbability) {
+    if (n >= PRIME) throw new IllegalArgumentException("Fingerprints support domains only below 2^61 - 1");
+    if (PRIME >= n / falsePositiveProbability) return 1;
+    double fingerprints = Math.ceil(Math.log(falsePositiveProbability) / Math.log1p(-(double) (PRIME - n) / PRIME));
+    if (fingerprints > MAX_FINGERPRINTS) throw new IllegalArgumentException("The domain is too close to 2^61 - 1 for the required probability");
+    return (int) fingerprints;
   }
   
-  protected final long n, r, prime;
+  protected final long n, r;
   protected long sum, weightedSum, polynom;
   
   @Override
-  public int memoryUsed() {
-    return 6;
+  public long memoryUsed() {
+    return 5;
+  }
+  
+  /**
+   * Chooses a random evaluation point for the fingerprint polynomial.
+   * @param context A context
+   * @return A non-zero element of the field
+   */
+  public static long randomPoint(Context context) {
+    return 1 + context.random(PRIME - 1);
+  }
+  
+  /**
+   * Precomputes powers of an evaluation point for {@link #power(long[], long)}.
+   * @param r The evaluation point
+   * @param bits The number of bits of the largest exponent
+   * @return The powers r<sup>2<sup>j</sup></sup> for j below the number of bits
+   */
+  public static long[] powers(long r, int bits) {
+    long[] powers = new long[bits];
+    powers(r, powers, 0, bits);
+    return powers;
+  }
+  
+  /**
+   * Precomputes powers of an evaluation point for {@link #power(long[], int, long)} into a part of an array.
+   * @param from The position of the first power
+   */
+  public static void powers(long r, long[] powers, int from, int bits) {
+    for (int j = 0; j < bits; j++, r = Util.mersenneMul(r, r)) powers[from + j] = r;
+  }
+  
+  /**
+   * Raises an evaluation point to the given power using its precomputed powers.
+   * @param powers The powers of the evaluation point given by {@link #powers(long, int)}
+   * @param index A non-negative exponent fitting into the number of bits of the powers
+   * @return The power
+   */
+  public static long power(long[] powers, long index) {
+    return power(powers, 0, index);
+  }
+  
+  /**
+   * Raises an evaluation point to the given power using its powers precomputed into a part of an array.
+   * @param from The position of the first power
+   */
+  public static long power(long[] powers, int from, long index) {
+    long ret = 1;
+    for (; index != 0; index &= index - 1) ret = Util.mersenneMul(ret, powers[from + Long.numberOfTrailingZeros(index)]);
+    return ret;
+  }
+  
+  /**
+   * Computes the change of the fingerprint caused by an update.
+   * @param frequencyChange The change of frequency
+   * @param power The evaluation point raised to the updated index
+   * @return The fingerprint term
+   */
+  public static long term(long frequencyChange, long power) {
+    return Util.mersenneMul(Util.mersenneMod(frequencyChange), power);
+  }
+  
+  /**
+   * Computes the change of the weighted sum caused by an update.
+   * @param frequencyChange The change of frequency
+   * @param index The updated index, below the prime
+   * @return The weighted sum term
+   */
+  public static long weightedTerm(long frequencyChange, long index) {
+    return Util.mersenneMul(Util.mersenneMod(frequencyChange), index);
   }
   
-  public SparseRecoverer(Context context, long n, long prime) {
+  /**
+   * Creates a recoverer evaluating the fingerprint in the given point.
+   * Recoverers sharing the evaluation point can share the fingerprint terms of updates (see {@link #update(long, long, long)}).
+   * @param n The domain size
+   * @param r The evaluation point, a non-zero element of the field
+   */
+  public SparseRecoverer(long n, long r) {
     this.n = n;
-    r = context.random(prime);
+    this.r = r;
     sum = weightedSum = polynom = 0;
-    this.prime = prime;
+  }
+  
+  public SparseRecoverer(Context context, long n) {
+    this(n, randomPoint(context));
   }
   
   public SparseRecoverer(Context context, long n, double falsePositiveProbability) {
-    this(context, n, getPrime(n, falsePositiveProbability));
+    this(context, n);
+    if (fingerprints(n, falsePositiveProbability) > 1) throw new IllegalArgumentException("A single fingerprint is not large enough for the required probability");
+  }
+  
+  public SparseRecoverer(SnapshotReader in) throws IOException {
+    n = in.readLong();
+    r = in.readLong();
+    sum = in.readLong();
+    weightedSum = in.readLong();
+    polynom = in.readLong();
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(n);
+    out.writeLong(r);
+    out.writeLong(sum);
+    out.writeLong(weightedSum);
+    out.writeLong(polynom);
   }
   
   public void update(long index, long frequencyChange) {
+    update(index, frequencyChange, term(frequencyChange, Util.mersennePow(r, index)));
+  }
+  
+  /**
+   * Updates with a precomputed fingerprint term.
+   * @param index The updated index
+   * @param frequencyChange The change of frequency
+   * @param term The fingerprint term given by {@link #term(long, long)} for the evaluation point of this recoverer
+   */
+  public void update(long index, long frequencyChange, long term) {
     sum += frequencyChange;
-    weightedSum += frequencyChange * index;
-    polynom = (polynom + frequencyChange * Util.powMod(r, index, prime)) % prime;
+    weightedSum = Util.mersenneAdd(weightedSum, weightedTerm(frequencyChange, index));
+    polynom = Util.mersenneAdd(polynom, term);
   }
   
-  public class IntegerResult {
+  public static class IntegerResult {
     public final long index, frequency;
-
+    
     public IntegerResult(long index, long frequency) {
       this.index = index;
       this.frequency = frequency;
@@ -62,11 +180,30 @@ public class SparseRecoverer implements MemoryUser {
   }
   
   public IntegerResult query() {
-    if (sum == 0 && weightedSum == 0 && polynom == 0) return new IntegerResult(0, 0);
-    if (polynom < 0) polynom += prime;
-    if (weightedSum % sum != 0) return null;
-    long index = weightedSum / sum;
-    if (index < 0|| index >= n || polynom != (sum * Util.powMod(r, index, prime)) % prime) return null;
-    return new IntegerResult(index, sum);
+    return query(n, r, sum, weightedSum, polynom);
+  }
+  
+  /**
+   * Recovers the only non-zero index from the state of a recoverer, its frequency is the sum.
+   * @return The recovered index, {@link #EMPTY} or {@link #FAILED}
+   */
+  public static long recover(long n, long r, long sum, long weightedSum, long polynom) {
+    if (sum == 0 && weightedSum == 0 && polynom == 0) return EMPTY;
+    long fieldSum = Util.mersenneMod(sum);
+    if (fieldSum == 0) return FAILED;
+    // Divided by the inverse given by Fermat's little theorem
+    long index = Util.mersenneMul(weightedSum, Util.mersennePow(fieldSum, PRIME - 2));
+    if (index >= n || polynom != Util.mersenneMul(fieldSum, Util.mersennePow(r, index))) return FAILED;
+    return index;
+  }
+  
+  /**
+   * Recovers the only non-zero index from the state of a recoverer.
+   * @return The recovered index with its frequency, a zero frequency if all are zero or {@code null} if there are more non-zero indices
+   */
+  public static IntegerResult query(long n, long r, long sum, long weightedSum, long polynom) {
+    long index = recover(n, r, sum, weightedSum, polynom);
+    if (index == FAILED) return null;
+    return index == EMPTY ? new IntegerResult(0, 0) : new IntegerResult(index, sum);
   }
 }
\ No newline at end of file
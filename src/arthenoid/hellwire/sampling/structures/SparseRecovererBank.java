@@ -0,0 +1,134 @@
+package arthenoid.hellwire.sampling.structures;
+
+import arthenoid.hellwire.sampling.MemoryUser;
+import arthenoid.hellwire.sampling.Util;
+import arthenoid.hellwire.sampling.snapshot.Persistent;
+import arthenoid.hellwire.sampling.snapshot.SnapshotReader;
+import arthenoid.hellwire.sampling.snapshot.SnapshotWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fixed number of {@link SparseRecoverer}s over the same domain, stored in flat arrays.
+ * The recoverers are addressed by their slot.
+ */
+public class SparseRecovererBank implements MemoryUser, Persistent {
+  protected final long n;
+  protected final long[] r, sum, weightedSum, polynom;
+  
+  @Override
+  public long memoryUsed() {
+    return 5 + 4L * r.length;
+  }
+  
+  /**
+   * The memory used by a bank of the given size.
+   */
+  public static long memoryFor(int size) {
+    return 5 + 4L * size;
+  }
+  
+  /**
+   * Creates the recoverers, their evaluation points have to be set by {@link #setPoint(int, long)}.
+   * @param n The domain size
+   * @param size The number of recoverers
+   */
+  public SparseRecovererBank(long n, int size) {
+    this.n = n;
+    r = new long[size];
+    sum = new long[size];
+    weightedSum = new long[size];
+    polynom = new long[size];
+  }
+  
+  /**
+   * Creates empty recoverers with the same evaluation points.
+   */
+  public SparseRecovererBank(SparseRecovererBank other) {
+    n = other.n;
+    r = other.r.clone();
+    sum = new long[r.length];
+    weightedSum = new long[r.length];
+    polynom = new long[r.length];
+  }
+  
+  public SparseRecovererBank(SnapshotReader in) throws IOException {
+    n = in.readLong();
+    r = in.readLongs();
+    sum = in.readLongs();
+    weightedSum = in.readLongs();
+    polynom = in.readLongs();
+  }
+  
+  @Override
+  public void write(SnapshotWriter out) throws IOException {
+    out.writeLong(n);
+    out.writeLongs(r);
+    out.writeLongs(sum);
+    out.writeLongs(weightedSum);
+    out.writeLongs(polynom);
+  }
+  
+  public int size() {
+    return r.length;
+  }
+  
+  public void setPoint(int slot, long point) {
+    r[slot] = point;
+  }
+  
+  public long point(int slot) {
+    return r[slot];
+  }
+  
+  public void update(int slot, long index, long frequencyChange) {
+    update(slot, index, frequencyChange, SparseRecoverer.term(frequencyChange, Util.mersennePow(r[slot], index)));
+  }
+  
+  /**
+   * Updates with a precomputed fingerprint term.
+   * @param slot The slot of the recoverer
+   * @param index The updated index
+   * @param frequencyChange The change of frequency
+   * @param term The fingerprint term given by {@link SparseRecoverer#term(long, long)} for the evaluation point of the recoverer
+   */
+  public void update(int slot, long index, long frequencyChange, long term) {
+    sum[slot] += frequencyChange;
+    weightedSum[slot] = Util.mersenneAdd(weightedSum[slot], SparseRecoverer.weightedTerm(frequencyChange, index));
+    polynom[slot] = Util.mersenneAdd(polynom[slot], term);
+  }
+  
+  public SparseRecoverer.IntegerResult query(int slot) {
+    return SparseRecoverer.query(n, r[slot], sum[slot], weightedSum[slot], polynom[slot]);
+  }
+  
+  /**
+   * Recovers the only non-zero index of a recoverer without allocating a result.
+   * @return The index, {@link SparseRecoverer#EMPTY} or {@link SparseRecoverer#FAILED}
+   */
+  public long recover(int slot) {
+    return SparseRecoverer.recover(n, r[slot], sum[slot], weightedSum[slot], polynom[slot]);
+  }
+  
+  /**
+   * The sum of frequencies of a recoverer, the frequency of the recovered index.
+   */
+  public long frequency(int slot) {
+    return sum[slot];
+  }
+  
+  public void clear() {
+    Arrays.fill(sum, 0);
+    Arrays.fill(weightedSum, 0);
+    Arrays.fill(polynom, 0);
+  }
+  
+  public void merge(SparseRecovererBank other) {
+    if (other.n != n || !Arrays.equals(other.r, r)) throw new IllegalArgumentException("Recoverers have different parameters.");
+    for (int i = 0; i < r.length; i++) {
+      sum[i] += other.sum[i];
+      weightedSum[i] = Util.mersenneAdd(weightedSum[i], other.weightedSum[i]);
+      polynom[i] = Util.mersenneAdd(polynom[i], other.polynom[i]);
+    }
+  }
+}